@@ -0,0 +1,311 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limits requests per user and overall with token buckets, ahead of any parsing.
+ *
+ * <li> a bucket is one <code>long</code>: the time of its last update in milliseconds (high bits) and
+ * the tokens it holds in thousandths (low {@value #TOKEN_BITS} bits). Taking a token refills the bucket
+ * for the time elapsed and consumes one in a single CAS, so there are no locks and no allocation.
+ * <li> user buckets live in an open-addressing table of user ids and bucket states; a slot whose bucket
+ * has refilled completely is idle and may be taken over by another user. Users finding no slot near their
+ * home while the table is crowded share one overflow bucket with the limits of a single user, so that they
+ * never drain the bucket of a tracked user.
+ * <li> a request takes a token from its user first and from the global bucket second, and gives the user
+ * token back when the global bucket is empty, so a flooding user cannot drain the global budget
+ * @author Simeon
+ *
+ */
+public final class AdmissionControl {
+
+	static final int TOKEN_BITS = 24;
+	private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+	private static final long MILLI = 1000;
+	/** most tokens a bucket can hold */
+	public static final int MAX_BURST = (int) (TOKEN_MASK / MILLI);
+
+	private static final long EMPTY = 0;
+	private static final int MAX_PROBES = 8;
+	/** slot of users without one of their own */
+	private static final int OVERFLOW = -1;
+
+	public static final int DEFAULT_USERS = 1 << 16;
+
+	private final boolean unlimited;
+	private final long userRate;
+	private final long userBurst;
+	private final long globalRate;
+	private final long globalBurst;
+	private final LongSupplier clock;
+
+	/** user id + 1 per slot, {@link #EMPTY} when never used */
+	private final AtomicLongArray users;
+	private final AtomicLongArray userBuckets;
+	private final int mask;
+	private final AtomicLong overflow;
+	private final AtomicLong global;
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rejectedForUser = new LongAdder();
+	private final LongAdder rejectedGlobally = new LongAdder();
+
+	private AdmissionControl(AdmissionControlBuilder builder, LongSupplier clock) {
+		this.unlimited = builder.userRate <= 0 && builder.globalRate <= 0;
+		this.userRate = builder.userRate;
+		this.userBurst = builder.userBurst * MILLI;
+		this.globalRate = builder.globalRate;
+		this.globalBurst = builder.globalBurst * MILLI;
+		this.clock = clock;
+
+		int capacity = Integer.highestOneBit(Math.max(2, builder.users - 1)) << 1;
+		this.users = new AtomicLongArray(capacity);
+		this.userBuckets = new AtomicLongArray(capacity);
+		this.mask = capacity - 1;
+		this.overflow = new AtomicLong(pack(clock.getAsLong(), userBurst));
+		this.global = new AtomicLong(pack(clock.getAsLong(), globalBurst));
+	}
+
+	/**
+	 * Admits everything, at no cost
+	 */
+	public static AdmissionControl unlimited() {
+		return builder().withUsers(2).build();
+	}
+
+	public static AdmissionControlBuilder builder() {
+		return new AdmissionControlBuilder();
+	}
+
+	/**
+	 * Limits from <code>kasisto.rate.user</code>, <code>kasisto.rate.userBurst</code>, <code>kasisto.rate.global</code>
+	 * and <code>kasisto.rate.globalBurst</code> (requests per second and bucket sizes), unlimited when not given
+	 */
+	public static AdmissionControl fromSystemProperties() {
+		int userRate = Integer.getInteger("kasisto.rate.user", 0);
+		int globalRate = Integer.getInteger("kasisto.rate.global", 0);
+		return builder()
+				.withUserRate(userRate, Integer.getInteger("kasisto.rate.userBurst", Math.max(1, userRate)))
+				.withGlobalRate(globalRate, Integer.getInteger("kasisto.rate.globalBurst", Math.max(1, globalRate)))
+				.build();
+	}
+
+	public final static class AdmissionControlBuilder {
+
+		private long userRate;
+		private long userBurst = 1;
+		private long globalRate;
+		private long globalBurst = 1;
+		private int users = DEFAULT_USERS;
+
+		/**
+		 * @param perSecond tokens added to the bucket of a user every second, 0 for no limit
+		 * @param burst size of the bucket, at most {@link AdmissionControl#MAX_BURST}
+		 */
+		public AdmissionControlBuilder withUserRate(int perSecond, int burst) {
+			this.userRate = perSecond;
+			this.userBurst = checkBurst(burst);
+			return this;
+		}
+
+		/**
+		 * @param perSecond tokens added to the global bucket every second, 0 for no limit
+		 * @param burst size of the bucket, at most {@link AdmissionControl#MAX_BURST}
+		 */
+		public AdmissionControlBuilder withGlobalRate(int perSecond, int burst) {
+			this.globalRate = perSecond;
+			this.globalBurst = checkBurst(burst);
+			return this;
+		}
+
+		/**
+		 * @param users users tracked at once, rounded up to a power of two
+		 */
+		public AdmissionControlBuilder withUsers(int users) {
+			this.users = users;
+			return this;
+		}
+
+		private static int checkBurst(int burst) {
+			if (burst < 1 || burst > MAX_BURST) {
+				throw new IllegalArgumentException("Burst must be between 1 and " + MAX_BURST + ": " + burst);
+			}
+			return burst;
+		}
+
+		public AdmissionControl build() {
+			long start = System.nanoTime();
+			return build(() -> (System.nanoTime() - start) / 1_000_000);
+		}
+
+		AdmissionControl build(LongSupplier millis) {
+			return new AdmissionControl(this, millis);
+		}
+	}
+
+	/**
+	 * Takes a token of the user and a global one
+	 * @return whether the request may proceed
+	 */
+	public boolean tryAcquire(long userId) {
+		if (unlimited) {
+			admitted.increment();
+			return true;
+		}
+		long now = clock.getAsLong();
+		int slot = OVERFLOW;
+		if (userRate > 0) {
+			slot = slotOf(userId, now);
+			if (!(slot == OVERFLOW ? take(overflow, now, userRate, userBurst) : take(userBuckets, slot, now, userRate, userBurst))) {
+				rejectedForUser.increment();
+				return false;
+			}
+		}
+		if (globalRate > 0 && !take(global, now, globalRate, globalBurst)) {
+			if (userRate > 0) {
+				if (slot == OVERFLOW) {
+					giveBack(overflow);
+				} else {
+					giveBack(userBuckets, slot);
+				}
+			}
+			rejectedGlobally.increment();
+			return false;
+		}
+		admitted.increment();
+		return true;
+	}
+
+	/**
+	 * Slot of the user, claiming a free or idle one when the user has none
+	 * @return {@link #OVERFLOW} when every slot near the home of the user is taken by an active user
+	 */
+	private int slotOf(long userId, long now) {
+		long key = userId + 1;
+		int home = (int) BalanceStore.hash(userId) & mask;
+		int reusable = -1;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int slot = (home + probe) & mask;
+			long occupant = users.get(slot);
+			if (occupant == key) {
+				return slot;
+			}
+			if (occupant == EMPTY) {
+				if (users.compareAndSet(slot, EMPTY, key)) {
+					userBuckets.set(slot, pack(now, userBurst));
+					return slot;
+				}
+				if (users.get(slot) == key) {
+					return slot;
+				}
+			} else if (reusable < 0 && refilled(userBuckets.get(slot), now, userRate, userBurst) == userBurst) {
+				reusable = slot;
+			}
+		}
+		if (reusable >= 0) {
+			long occupant = users.get(reusable);
+			if (occupant == key) {
+				return reusable;
+			}
+			if (occupant != EMPTY && users.compareAndSet(reusable, occupant, key)) {
+				// the previous user may have taken a token since the slot looked idle; the bucket is 
+				// only handed over if it is still full, and restarted for the new user
+				long state = userBuckets.get(reusable);
+				if (refilled(state, now, userRate, userBurst) == userBurst 
+						&& userBuckets.compareAndSet(reusable, state, pack(now, userBurst))) {
+					return reusable;
+				}
+			}
+		}
+		// table crowded: the user must not share the bucket of another
+		return OVERFLOW;
+	}
+
+	private static boolean take(AtomicLongArray buckets, int slot, long now, long rate, long burst) {
+		while (true) {
+			long state = buckets.get(slot);
+			long tokens = refilled(state, now, rate, burst);
+			if (tokens < MILLI) {
+				return false;
+			}
+			if (buckets.compareAndSet(slot, state, pack(Math.max(now, timeOf(state)), tokens - MILLI))) {
+				return true;
+			}
+		}
+	}
+
+	private static boolean take(AtomicLong bucket, long now, long rate, long burst) {
+		while (true) {
+			long state = bucket.get();
+			long tokens = refilled(state, now, rate, burst);
+			if (tokens < MILLI) {
+				return false;
+			}
+			if (bucket.compareAndSet(state, pack(Math.max(now, timeOf(state)), tokens - MILLI))) {
+				return true;
+			}
+		}
+	}
+
+	private void giveBack(AtomicLongArray buckets, int slot) {
+		while (true) {
+			long state = buckets.get(slot);
+			long tokens = Math.min(userBurst, (state & TOKEN_MASK) + MILLI);
+			if (buckets.compareAndSet(slot, state, pack(timeOf(state), tokens))) {
+				return;
+			}
+		}
+	}
+
+	private void giveBack(AtomicLong bucket) {
+		while (true) {
+			long state = bucket.get();
+			long tokens = Math.min(userBurst, (state & TOKEN_MASK) + MILLI);
+			if (bucket.compareAndSet(state, pack(timeOf(state), tokens))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return thousandths of tokens the bucket holds at <code>now</code>
+	 */
+	private static long refilled(long state, long now, long rate, long burst) {
+		long elapsed = Math.max(0, now - timeOf(state));
+		// 'rate' tokens per second are 'rate' thousandths per millisecond
+		return Math.min(burst, (state & TOKEN_MASK) + Math.min(elapsed, burst) * rate);
+	}
+
+	private static long timeOf(long state) {
+		return state >>> TOKEN_BITS;
+	}
+
+	private static long pack(long millis, long tokens) {
+		return (millis << TOKEN_BITS) | tokens;
+	}
+
+	public long admitted() {
+		return admitted.sum();
+	}
+
+	public long rejectedForUser() {
+		return rejectedForUser.sum();
+	}
+
+	public long rejectedGlobally() {
+		return rejectedGlobally.sum();
+	}
+
+	public long rejected() {
+		return rejectedForUser() + rejectedGlobally();
+	}
+
+	@Override
+	public String toString() {
+		return "AdmissionControl [userRate=" + userRate + ", globalRate=" + globalRate + ", admitted=" + admitted()
+				+ ", rejectedForUser=" + rejectedForUser() + ", rejectedGlobally=" + rejectedGlobally() + "]";
+	}
+}
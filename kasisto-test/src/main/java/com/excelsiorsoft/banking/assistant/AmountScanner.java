@@ -0,0 +1,414 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the amount of money in a request and turns it into minor units (cents), in one pass over the
+ * characters and without regular expressions, boxing or substrings.
+ *
+ * <li> characters are told apart by a class table: digits, letters, blanks and currency symbols
+ * <li> figures may carry thousands separators, a decimal part and a magnitude ("$1,250.50", "1.5k", "2 grand")
+ * <li> number words are looked up in a word table bucketed by initial ("twenty five", "a hundred", "two thousand")
+ * <li> a currency symbol before or a currency word after marks a number as money ("fifty bucks", "50 cents");
+ * the first marked number wins, otherwise the first number found
+ * <li> a minus sign right before a figure ("-20 dollars", "-$20") makes the whole text hold no amount, as
+ * transfers are never negative; between words it is a hyphen ("twenty-five")
+ *
+ * Intermediate results are a value and the index where it ends packed into one <code>long</code>, so that
+ * nothing is allocated per request.
+ * @author Simeon
+ *
+ */
+public final class AmountScanner {
+
+	/** returned when the text holds no amount */
+	public static final long NO_AMOUNT = -1;
+
+	static final int INDEX_BITS = 21;
+	private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+	private static final long VALUE_MASK = (1L << (63 - INDEX_BITS)) - 1;
+	/** value of a number too large to be an amount */
+	private static final long TOO_LARGE = VALUE_MASK;
+	/** largest amount in minor units */
+	public static final long MAX_AMOUNT = VALUE_MASK - 1;
+	private static final long NONE = -1;
+
+	private static final byte OTHER = 0;
+	private static final byte DIGIT = 1;
+	private static final byte LETTER = 2;
+	private static final byte BLANK = 3;
+	private static final byte SYMBOL = 4;
+	private static final byte[] CLASSES = new byte[128];
+	static {
+		for (char c = '0'; c <= '9'; c++) CLASSES[c] = DIGIT;
+		for (char c = 'a'; c <= 'z'; c++) CLASSES[c] = LETTER;
+		for (char c = 'A'; c <= 'Z'; c++) CLASSES[c] = LETTER;
+		CLASSES['\''] = LETTER;
+		CLASSES[' '] = BLANK;
+		CLASSES['\t'] = BLANK;
+		CLASSES['-'] = BLANK;
+		CLASSES['$'] = SYMBOL;
+	}
+
+	private static final byte NUMBER = 1;
+	private static final byte HUNDRED = 2;
+	private static final byte SCALE = 3;
+	private static final byte ARTICLE = 4;
+	private static final byte CURRENCY = 5;
+	private static final byte CENTS = 6;
+
+	private static final String[] NUMBERS = {"zero", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine",
+			"ten", "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen", "eighteen", "nineteen"};
+	private static final String[] TENS = {"twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty", "ninety"};
+
+	/** currency words known without being configured */
+	static final String[] DEFAULT_CURRENCIES = {"dollars", "dollar", "bucks", "buck", "usd"};
+
+	private static final AmountScanner DEFAULT = new AmountScanner(DEFAULT_CURRENCIES);
+
+	/** words by initial letter, with their kind and value at the same positions */
+	private final char[][][] words = new char[26][][];
+	private final byte[][] kinds = new byte[26][];
+	private final long[][] values = new long[26][];
+
+	private AmountScanner(String[] currencies) {
+		List<Object[]> table = new ArrayList<>();
+		for (int i = 0; i < NUMBERS.length; i++) {
+			table.add(new Object[] {NUMBERS[i], NUMBER, (long) i});
+		}
+		for (int i = 0; i < TENS.length; i++) {
+			table.add(new Object[] {TENS[i], NUMBER, 20L + 10 * i});
+		}
+		table.add(new Object[] {"hundred", HUNDRED, 100L});
+		table.add(new Object[] {"thousand", SCALE, 1_000L});
+		table.add(new Object[] {"grand", SCALE, 1_000L});
+		table.add(new Object[] {"k", SCALE, 1_000L});
+		table.add(new Object[] {"million", SCALE, 1_000_000L});
+		table.add(new Object[] {"m", SCALE, 1_000_000L});
+		table.add(new Object[] {"a", ARTICLE, 1L});
+		table.add(new Object[] {"cents", CENTS, 1L});
+		table.add(new Object[] {"cent", CENTS, 1L});
+		for (String currency : currencies) {
+			table.add(new Object[] {currency.trim().toLowerCase(), CURRENCY, 1L});
+		}
+
+		for (Object[] entry : table) {
+			String word = (String) entry[0];
+			int initial = word.isEmpty() ? -1 : word.charAt(0) - 'a';
+			if (initial < 0 || initial >= 26) {
+				throw new IllegalArgumentException("Amount words must start with a letter from a to z: '" + word + "'");
+			}
+			int size = words[initial] == null ? 0 : words[initial].length;
+			if (size == 256) {
+				throw new IllegalArgumentException("Too many amount words starting with '" + word.charAt(0) + "'");
+			}
+			words[initial] = Arrays.copyOf(words[initial] == null ? new char[0][] : words[initial], size + 1);
+			kinds[initial] = Arrays.copyOf(kinds[initial] == null ? new byte[0] : kinds[initial], size + 1);
+			values[initial] = Arrays.copyOf(values[initial] == null ? new long[0] : values[initial], size + 1);
+			words[initial][size] = word.toCharArray();
+			kinds[initial][size] = (Byte) entry[1];
+			values[initial][size] = (Long) entry[2];
+		}
+	}
+
+	/**
+	 * Scanner knowing {@link #DEFAULT_CURRENCIES}
+	 */
+	public static AmountScanner defaults() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Scanner knowing the given currency words on top of {@link #DEFAULT_CURRENCIES}
+	 * @throws IllegalArgumentException on a word not starting with a letter from a to z
+	 */
+	public static AmountScanner withCurrencies(String... currencies) {
+		String[] all = Arrays.copyOf(DEFAULT_CURRENCIES, DEFAULT_CURRENCIES.length + currencies.length);
+		System.arraycopy(currencies, 0, all, DEFAULT_CURRENCIES.length, currencies.length);
+		return new AmountScanner(all);
+	}
+
+	/**
+	 * @return amount in minor units, or {@link #NO_AMOUNT}
+	 */
+	public long scan(CharSequence text) {
+		int length = (int) Math.min(text.length(), INDEX_MASK);
+		long first = NO_AMOUNT;
+		boolean symbol = false;
+		for (int i = 0; i < length;) {
+			byte type = classOf(text.charAt(i));
+			if (type == SYMBOL) {
+				symbol = true;
+				i++;
+				continue;
+			}
+			if (type == BLANK) {
+				if (text.charAt(i) == '-' && isMinus(text, i, length)) {
+					return NO_AMOUNT;
+				}
+				i++;
+				continue;
+			}
+			long number = type == DIGIT ? figures(text, i, length) : type == LETTER ? words(text, i, length) : NONE;
+			if (number == NONE) {
+				i = type == LETTER ? wordEnd(text, i, length) : i + 1;
+				symbol = false;
+				continue;
+			}
+
+			long value = valueOf(number);
+			int end = endOf(number);
+			boolean money = symbol;
+			int next = skipBlanks(text, end, length);
+			int nextEnd = wordEnd(text, next, length);
+			int entry = lookup(text, next, nextEnd);
+			if (type == DIGIT && (kind(entry) == SCALE || kind(entry) == HUNDRED)) {
+				// "1.5k", "2 thousand"
+				value = times(value, magnitude(entry));
+				end = nextEnd;
+				next = skipBlanks(text, end, length);
+				nextEnd = wordEnd(text, next, length);
+				entry = lookup(text, next, nextEnd);
+			}
+			if (kind(entry) == CURRENCY) {
+				money = true;
+				end = nextEnd;
+			} else if (kind(entry) == CENTS) {
+				money = true;
+				value = value == TOO_LARGE ? value : value / 100;
+				end = nextEnd;
+			}
+
+			if (value != TOO_LARGE) {
+				if (money) {
+					return value;
+				}
+				if (first == NO_AMOUNT) {
+					first = value;
+				}
+			}
+			i = end;
+			symbol = false;
+		}
+		return first;
+	}
+
+	/**
+	 * Digits with optional thousands separators and decimal part, e.g. "1,250.50"; decimals past the
+	 * cents are rounded half up
+	 * @return minor units and end, packed
+	 */
+	private static long figures(CharSequence text, int start, int length) {
+		long whole = 0;
+		int i = start;
+		while (i < length) {
+			char c = text.charAt(i);
+			if (isDigit(c)) {
+				whole = whole > MAX_AMOUNT / 1000 ? TOO_LARGE : whole * 10 + (c - '0');
+				i++;
+			} else if (c == ',' && isThousands(text, i + 1, length)) {
+				i++;
+			} else {
+				break;
+			}
+		}
+		long minor = times(whole, 100);
+		if (i + 1 < length && text.charAt(i) == '.' && isDigit(text.charAt(i + 1))) {
+			long fraction = 0;
+			int decimals = 0;
+			for (i++; i < length && isDigit(text.charAt(i)); i++, decimals++) {
+				int digit = text.charAt(i) - '0';
+				if (decimals < 2) {
+					fraction = fraction * 10 + digit;
+				} else if (decimals == 2 && digit >= 5) {
+					fraction++;
+				}
+			}
+			if (minor != TOO_LARGE) {
+				minor += decimals == 1 ? fraction * 10 : fraction;
+			}
+		}
+		return pack(minor, i);
+	}
+
+	/**
+	 * Number words, e.g. "twenty five", "a hundred", "two thousand three hundred"
+	 * @return minor units and end, packed, or {@link #NONE} when the text does not start with a number word
+	 */
+	private long words(CharSequence text, int start, int length) {
+		long total = 0;
+		long group = 0;
+		boolean counted = false;
+		boolean article = false;
+		int end = start;
+		for (int i = start; i < length;) {
+			int wordEnd = wordEnd(text, i, length);
+			int entry = lookup(text, i, wordEnd);
+			byte kind = kind(entry);
+			if (kind == NUMBER) {
+				group += magnitude(entry);
+			} else if (kind == HUNDRED && (counted || article)) {
+				group = Math.max(group, 1) * 100;
+			} else if (kind == SCALE && (counted || article)) {
+				total += Math.max(group, 1) * magnitude(entry);
+				group = 0;
+			} else if (kind == ARTICLE && !counted && !article) {
+				// only a number when followed by "hundred" or a scale
+				article = true;
+				i = skipBlanks(text, wordEnd, length);
+				continue;
+			} else {
+				break;
+			}
+			if (total + group > MAX_AMOUNT / 100) {
+				return pack(TOO_LARGE, wordEnd);
+			}
+			counted = true;
+			end = wordEnd;
+			i = skipBlanks(text, wordEnd, length);
+		}
+		return counted ? pack((total + group) * 100, end) : NONE;
+	}
+
+	/**
+	 * @return position of the word in the table, as initial * 256 + index, or -1
+	 */
+	private int lookup(CharSequence text, int start, int end) {
+		if (start >= end) {
+			return -1;
+		}
+		int initial = Character.toLowerCase(text.charAt(start)) - 'a';
+		if (initial < 0 || initial >= 26 || words[initial] == null) {
+			return -1;
+		}
+		char[][] candidates = words[initial];
+		int length = end - start;
+		candidates:
+		for (int w = 0; w < candidates.length; w++) {
+			char[] word = candidates[w];
+			if (word.length != length) {
+				continue;
+			}
+			for (int k = 1; k < length; k++) {
+				if (Character.toLowerCase(text.charAt(start + k)) != word[k]) {
+					continue candidates;
+				}
+			}
+			return initial << 8 | w;
+		}
+		return -1;
+	}
+
+	private byte kind(int entry) {
+		return entry < 0 ? OTHER : kinds[entry >>> 8][entry & 0xff];
+	}
+
+	private long magnitude(int entry) {
+		return values[entry >>> 8][entry & 0xff];
+	}
+
+	private static byte classOf(char c) {
+		if (c < 128) {
+			return CLASSES[c];
+		}
+		if (Character.getType(c) == Character.CURRENCY_SYMBOL) {
+			return SYMBOL;
+		}
+		if (Character.isLetter(c)) {
+			return LETTER;
+		}
+		return Character.isSpaceChar(c) ? BLANK : OTHER;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * @return whether the '-' at <code>at</code> is the sign of a figure: not preceded by a letter or digit,
+	 * and followed by a digit, optionally after a currency symbol
+	 */
+	private static boolean isMinus(CharSequence text, int at, int length) {
+		if (at > 0) {
+			byte before = classOf(text.charAt(at - 1));
+			if (before == LETTER || before == DIGIT) {
+				return false;
+			}
+		}
+		int next = at + 1;
+		if (next < length && classOf(text.charAt(next)) == SYMBOL) {
+			next++;
+		}
+		return next < length && isDigit(text.charAt(next));
+	}
+
+	/**
+	 * @return whether exactly three digits follow
+	 */
+	private static boolean isThousands(CharSequence text, int start, int length) {
+		if (start + 3 > length) {
+			return false;
+		}
+		for (int i = start; i < start + 3; i++) {
+			if (!isDigit(text.charAt(i))) {
+				return false;
+			}
+		}
+		return start + 3 == length || !isDigit(text.charAt(start + 3));
+	}
+
+	private static int wordEnd(CharSequence text, int start, int length) {
+		int i = start;
+		while (i < length && classOf(text.charAt(i)) == LETTER) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipBlanks(CharSequence text, int start, int length) {
+		int i = start;
+		while (i < length && classOf(text.charAt(i)) == BLANK) {
+			i++;
+		}
+		return i;
+	}
+
+	private static long times(long value, long factor) {
+		return value == TOO_LARGE || value > MAX_AMOUNT / factor ? TOO_LARGE : value * factor;
+	}
+
+	private static long pack(long value, int end) {
+		return Math.min(value, TOO_LARGE) << INDEX_BITS | end;
+	}
+
+	private static long valueOf(long packed) {
+		return packed >>> INDEX_BITS;
+	}
+
+	private static int endOf(long packed) {
+		return (int) (packed & INDEX_MASK);
+	}
+
+	/**
+	 * Minor units the way the user would write them: whole dollars without decimals
+	 */
+	static String toDollars(long minorUnits) {
+		if (minorUnits == NO_AMOUNT) {
+			return "none";
+		}
+		long magnitude = Math.abs(minorUnits);
+		long cents = magnitude % 100;
+		return (minorUnits < 0 ? "-" : "") + (magnitude / 100) + (cents == 0 ? "" : cents < 10 ? ".0" + cents : "." + cents);
+	}
+
+	@Override
+	public String toString() {
+		int size = 0;
+		for (char[][] bucket : words) {
+			size += bucket == null ? 0 : bucket.length;
+		}
+		return "AmountScanner [words=" + size + "]";
+	}
+}
@@ -0,0 +1,525 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import sun.misc.Unsafe;
+
+/**
+ * Account balances kept off the Java heap, so that tens of millions of accounts do not turn into
+ * tens of millions of objects for the collector to trace.
+ *
+ * <li> every account occupies one fixed-width record slot in direct (or memory-mapped) buffers:
+ * balance, version (the number of balance changes), CD maturity day and the amount transferred out 
+ * during the current day, packed with that day into one word
+ * <li> an open-addressing index, also off-heap, maps account id to slot
+ * <li> reads are volatile loads of the record and single-account updates are CAS, without locking; only a 
+ * transfer, which changes two accounts together, takes the monitors of both from a fixed striped set, 
+ * in a fixed order. Neither reads nor updates allocate.
+ *
+ * Balances are in minor units (cents).
+ * @author Simeon
+ *
+ */
+public final class BalanceStore implements Closeable {
+
+	/** Returned by lookups of accounts the store does not hold */
+	public static final long NO_BALANCE = Long.MIN_VALUE;
+
+	/** Outcomes of {@link #transfer(long, long, long, int, long)} */
+	public static final int TRANSFERRED = 0;
+	public static final int UNKNOWN_ACCOUNT = 1;
+	public static final int INSUFFICIENT_FUNDS = 2;
+	public static final int OVER_DAILY_LIMIT = 3;
+
+	static final int RECORD_SIZE = 64;
+	static final int ACCOUNT_ID = 0;
+	static final int BALANCE = 8;
+	static final int VERSION = 16;
+	static final int MATURITY_DAY = 24;
+	/** day since epoch above {@link #DAILY_TOTAL_BITS}, amount transferred out that day below */
+	static final int DAILY = 32;
+	static final int DAILY_TOTAL_BITS = 42;
+	/** daily totals stop growing at this amount */
+	static final long MAX_DAILY_TOTAL = (1L << DAILY_TOTAL_BITS) - 1;
+
+	private static final long MILLIS_PER_DAY = 86_400_000L;
+
+	private static final int INDEX_ENTRY_SIZE = 16;
+	private static final int INDEX_KEY = 0;
+	private static final int INDEX_SLOT = 8;
+
+	static final int MAGIC = 0x4b42414c; // KBAL
+	static final int FORMAT_VERSION = 2;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int HEADER_COUNT = 0;
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_MAGIC = 16;
+	private static final int HEADER_VERSION = 20;
+	private static final int HEADER_RECORD_SIZE = 24;
+
+	private static final int MAX_SEGMENT_SIZE = 1 << 30;
+	private static final int STRIPES = 1024;
+
+	private final OffHeap records;
+	private final OffHeap index;
+	private final long indexMask;
+	private final int capacity;
+	private final ByteBuffer header;
+	private final FileChannel channel;
+	private final Object[] stripes = new Object[STRIPES];
+	private final Object insertLock = new Object();
+
+	/** written last on insert so that index readers see complete entries */
+	private volatile int count;
+
+	private BalanceStore(int capacity, OffHeap records, ByteBuffer header, FileChannel channel) {
+		this.capacity = capacity;
+		this.records = records;
+		this.header = header;
+		this.channel = channel;
+		long indexEntries = Long.highestOneBit(Math.max(2L * capacity, 2) - 1) << 1;
+		this.indexMask = indexEntries - 1;
+		this.index = OffHeap.allocateDirect(indexEntries * INDEX_ENTRY_SIZE);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * Store backed by direct buffers, lost on exit
+	 */
+	public static BalanceStore allocateDirect(int capacity) {
+		return new BalanceStore(capacity, OffHeap.allocateDirect((long) capacity * RECORD_SIZE),
+				ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder()), null);
+	}
+
+	/**
+	 * Store backed by a memory-mapped file. Records already in the file are indexed on open.
+	 * The file starts with a header of {@link #MAGIC}, the format version, the record size and the capacity.
+	 * @throws IllegalArgumentException if the file is not a store of this format or was created with a different capacity
+	 */
+	public static BalanceStore map(Path file, int capacity) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			long existingCapacity = header.getLong(HEADER_CAPACITY);
+			if (existingCapacity == 0 && header.getInt(HEADER_MAGIC) == 0) {
+				header.putInt(HEADER_MAGIC, MAGIC);
+				header.putInt(HEADER_VERSION, FORMAT_VERSION);
+				header.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+				header.putLong(HEADER_CAPACITY, capacity);
+			} else if (header.getInt(HEADER_MAGIC) != MAGIC) {
+				throw new IllegalArgumentException(file + " is not a balance store");
+			} else if (header.getInt(HEADER_VERSION) != FORMAT_VERSION || header.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+				throw new IllegalArgumentException(file + " holds a store of version " + header.getInt(HEADER_VERSION) 
+						+ " with " + header.getInt(HEADER_RECORD_SIZE) + " byte records, not version " + FORMAT_VERSION + " with " + RECORD_SIZE);
+			} else if (existingCapacity != capacity) {
+				throw new IllegalArgumentException(file + " holds a store of capacity " + existingCapacity + ", not " + capacity);
+			}
+
+			BalanceStore store = new BalanceStore(capacity, OffHeap.map(channel, HEADER_SIZE, (long) capacity * RECORD_SIZE), header, channel);
+			store.reindex();
+			return store;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void reindex() {
+		int existing = (int) header.getLong(HEADER_COUNT);
+		for (int slot = 0; slot < existing; slot++) {
+			indexPut(records.getLong(offsetOf(slot) + ACCOUNT_ID), slot);
+		}
+		count = existing;
+	}
+
+	/**
+	 * Opens an account with the given balance
+	 * @return false if the account is already open
+	 * @throws IllegalStateException if the store is full
+	 */
+	public boolean open(long accountId, long balance) {
+		synchronized (insertLock) {
+			if (slotOf(accountId) >= 0) {
+				return false;
+			}
+			int slot = count;
+			if (slot == capacity) {
+				throw new IllegalStateException("Balance store is full: " + capacity + " accounts");
+			}
+			long offset = offsetOf(slot);
+			records.putLong(offset + ACCOUNT_ID, accountId);
+			records.putLong(offset + BALANCE, balance);
+			records.putLong(offset + VERSION, 0);
+			records.putInt(offset + MATURITY_DAY, 0);
+			records.putLong(offset + DAILY, 0);
+			indexPut(accountId, slot);
+			header.putLong(HEADER_COUNT, slot + 1);
+			count = slot + 1;
+			return true;
+		}
+	}
+
+	public boolean contains(long accountId) {
+		return slotOf(accountId) >= 0;
+	}
+
+	/**
+	 * @return balance in minor units or {@link #NO_BALANCE}
+	 */
+	public long balance(long accountId) {
+		int slot = slotOf(accountId);
+		if (slot < 0) {
+			return NO_BALANCE;
+		}
+		return records.getLongVolatile(offsetOf(slot) + BALANCE);
+	}
+
+	/**
+	 * Atomically adds <code>delta</code> to the balance
+	 * @return the new balance or {@link #NO_BALANCE}
+	 */
+	public long add(long accountId, long delta) {
+		int slot = slotOf(accountId);
+		if (slot < 0) {
+			return NO_BALANCE;
+		}
+		return update(offsetOf(slot), delta);
+	}
+
+	/**
+	 * Sets the day (since epoch) before which funds may not leave the account, i.e. of a CD
+	 * @return false if the account is unknown
+	 */
+	public boolean setMaturityDay(long accountId, int epochDay) {
+		int slot = slotOf(accountId);
+		if (slot < 0) {
+			return false;
+		}
+		records.putIntVolatile(offsetOf(slot) + MATURITY_DAY, epochDay);
+		return true;
+	}
+
+	/**
+	 * @return maturity day (since epoch) of the account, 0 if it has none or is unknown
+	 */
+	public int maturityDay(long accountId) {
+		int slot = slotOf(accountId);
+		if (slot < 0) {
+			return 0;
+		}
+		return records.getIntVolatile(offsetOf(slot) + MATURITY_DAY);
+	}
+
+	/**
+	 * @return amount transferred out of the account on the given day (since epoch)
+	 */
+	public long transferredOn(long accountId, int epochDay) {
+		int slot = slotOf(accountId);
+		if (slot < 0) {
+			return 0;
+		}
+		return dailyTotal(records.getLongVolatile(offsetOf(slot) + DAILY), epochDay);
+	}
+
+	/**
+	 * Current day since epoch (UTC), as used for daily totals
+	 */
+	public static int today() {
+		return (int) (System.currentTimeMillis() / MILLIS_PER_DAY);
+	}
+
+	/**
+	 * Atomically moves <code>amount</code> between two accounts today, provided the source can cover it
+	 * @return false if either account is unknown or funds are insufficient
+	 */
+	public boolean transfer(long sourceId, long destinationId, long amount) {
+		return transfer(sourceId, destinationId, amount, today());
+	}
+
+	/**
+	 * Atomically moves <code>amount</code> between two accounts, provided the source can cover it, 
+	 * and adds it to the source's total for <code>epochDay</code>
+	 * @return false if either account is unknown or funds are insufficient
+	 */
+	public boolean transfer(long sourceId, long destinationId, long amount, int epochDay) {
+		return transfer(sourceId, destinationId, amount, epochDay, Long.MAX_VALUE) == TRANSFERRED;
+	}
+
+	/**
+	 * Atomically moves <code>amount</code> between two accounts, provided the source can cover it and
+	 * its total for <code>epochDay</code> stays within <code>dailyLimit</code>, and adds it to that total
+	 * @return {@link #TRANSFERRED}, {@link #UNKNOWN_ACCOUNT}, {@link #INSUFFICIENT_FUNDS} or {@link #OVER_DAILY_LIMIT}
+	 */
+	public int transfer(long sourceId, long destinationId, long amount, int epochDay, long dailyLimit) {
+		int source = slotOf(sourceId);
+		int destination = slotOf(destinationId);
+		if (source < 0 || destination < 0) {
+			return UNKNOWN_ACCOUNT;
+		}
+		// always lock the lower stripe first
+		Object first = stripeOf(Math.min(source & (STRIPES - 1), destination & (STRIPES - 1)));
+		Object second = stripeOf(Math.max(source & (STRIPES - 1), destination & (STRIPES - 1)));
+		synchronized (first) {
+			synchronized (second) {
+				// the daily total only changes under these monitors, the balances may also change by add()
+				long sourceOffset = offsetOf(source);
+				long transferred = dailyTotal(records.getLongVolatile(sourceOffset + DAILY), epochDay);
+				if (amount > dailyLimit - transferred) {
+					return OVER_DAILY_LIMIT;
+				}
+				long balance;
+				do {
+					balance = records.getLongVolatile(sourceOffset + BALANCE);
+					if (balance < amount) {
+						return INSUFFICIENT_FUNDS;
+					}
+				} while (!records.compareAndSetLong(sourceOffset + BALANCE, balance, balance - amount));
+				records.getAndAddLong(sourceOffset + VERSION, 1);
+				update(offsetOf(destination), amount);
+				records.putLongVolatile(sourceOffset + DAILY, (long) epochDay << DAILY_TOTAL_BITS | Math.min(MAX_DAILY_TOTAL, transferred + amount));
+				return TRANSFERRED;
+			}
+		}
+	}
+
+	private long update(long offset, long delta) {
+		long balance = records.getAndAddLong(offset + BALANCE, delta) + delta;
+		records.getAndAddLong(offset + VERSION, 1);
+		return balance;
+	}
+
+	private static long dailyTotal(long daily, int epochDay) {
+		return daily >>> DAILY_TOTAL_BITS == epochDay ? daily & MAX_DAILY_TOTAL : 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Flushes a mapped store to disk; no-op for a direct one
+	 */
+	public void force() {
+		if (channel != null) {
+			((MappedByteBuffer) header).force();
+			records.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			force();
+			channel.close();
+		}
+	}
+
+	private Object stripeOf(int slot) {
+		return stripes[slot & (STRIPES - 1)];
+	}
+
+	private static long offsetOf(int slot) {
+		return (long) slot * RECORD_SIZE;
+	}
+
+	private int slotOf(long accountId) {
+		int published = count;  // volatile read, pairs with the write in open()
+		if (published == 0) {
+			return -1;
+		}
+		for (long i = hash(accountId) & indexMask;; i = (i + 1) & indexMask) {
+			long entry = i * INDEX_ENTRY_SIZE;
+			long slot = index.getLong(entry + INDEX_SLOT);
+			if (slot == 0) {
+				return -1;
+			}
+			// an entry of an account still being opened may be visible before its key, 
+			// only entries of slots published by count are known to be complete
+			if (slot <= published && index.getLong(entry + INDEX_KEY) == accountId) {
+				return (int) (slot - 1);
+			}
+		}
+	}
+
+	private void indexPut(long accountId, int slot) {
+		for (long i = hash(accountId) & indexMask;; i = (i + 1) & indexMask) {
+			long entry = i * INDEX_ENTRY_SIZE;
+			if (index.getLong(entry + INDEX_SLOT) == 0) {
+				index.putLong(entry + INDEX_KEY, accountId);
+				index.putLong(entry + INDEX_SLOT, slot + 1L);
+				return;
+			}
+		}
+	}
+
+	static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		return "BalanceStore [size=" + count + ", capacity=" + capacity + ", mapped=" + (channel != null) + "]";
+	}
+
+	/**
+	 * Long-addressable memory made of power-of-two sized buffer segments, since a single
+	 * {@link ByteBuffer} cannot exceed 2GB. Segment sizes are multiples of the record and index
+	 * entry sizes, so no value straddles two segments.
+	 */
+	static final class OffHeap {
+
+		private static final Unsafe UNSAFE;
+		private static final long ADDRESS;
+		static {
+			try {
+				Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				UNSAFE = (Unsafe) theUnsafe.get(null);
+				ADDRESS = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+			} catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		private final ByteBuffer[] segments;
+		/** native addresses of the segments, for volatile and atomic access */
+		private final long[] addresses;
+		/** whether the segments hold values in other than the native byte order */
+		private final boolean swapped;
+		private final int shift;
+		private final long mask;
+
+		private OffHeap(ByteBuffer[] segments, int shift) {
+			this.segments = segments;
+			this.addresses = new long[segments.length];
+			for (int i = 0; i < segments.length; i++) {
+				addresses[i] = UNSAFE.getLong(segments[i], ADDRESS);
+			}
+			this.swapped = segments.length > 0 && segments[0].order() != ByteOrder.nativeOrder();
+			this.shift = shift;
+			this.mask = (1L << shift) - 1;
+		}
+
+		static OffHeap allocateDirect(long bytes) {
+			int shift = shiftFor(bytes);
+			ByteBuffer[] segments = new ByteBuffer[segmentCount(bytes, shift)];
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = ByteBuffer.allocateDirect(segmentSize(bytes, shift, i)).order(ByteOrder.nativeOrder());
+			}
+			return new OffHeap(segments, shift);
+		}
+
+		static OffHeap map(FileChannel channel, long position, long bytes) throws IOException {
+			int shift = shiftFor(bytes);
+			ByteBuffer[] segments = new ByteBuffer[segmentCount(bytes, shift)];
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = channel.map(MapMode.READ_WRITE, position + ((long) i << shift), segmentSize(bytes, shift, i))
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return new OffHeap(segments, shift);
+		}
+
+		private static int shiftFor(long bytes) {
+			long size = Math.min(MAX_SEGMENT_SIZE, Math.max(RECORD_SIZE, Long.highestOneBit(bytes - 1) << 1));
+			return Long.numberOfTrailingZeros(size);
+		}
+
+		private static int segmentCount(long bytes, int shift) {
+			return (int) ((bytes + (1L << shift) - 1) >>> shift);
+		}
+
+		private static int segmentSize(long bytes, int shift, int segment) {
+			return (int) Math.min(1L << shift, bytes - ((long) segment << shift));
+		}
+
+		long getLong(long offset) {
+			return segments[(int) (offset >>> shift)].getLong((int) (offset & mask));
+		}
+
+		void putLong(long offset, long value) {
+			segments[(int) (offset >>> shift)].putLong((int) (offset & mask), value);
+		}
+
+		int getInt(long offset) {
+			return segments[(int) (offset >>> shift)].getInt((int) (offset & mask));
+		}
+
+		void putInt(long offset, int value) {
+			segments[(int) (offset >>> shift)].putInt((int) (offset & mask), value);
+		}
+
+		long getLongVolatile(long offset) {
+			return order(UNSAFE.getLongVolatile(null, addressOf(offset)));
+		}
+
+		void putLongVolatile(long offset, long value) {
+			UNSAFE.putLongVolatile(null, addressOf(offset), order(value));
+		}
+
+		int getIntVolatile(long offset) {
+			int value = UNSAFE.getIntVolatile(null, addressOf(offset));
+			return swapped ? Integer.reverseBytes(value) : value;
+		}
+
+		void putIntVolatile(long offset, int value) {
+			UNSAFE.putIntVolatile(null, addressOf(offset), swapped ? Integer.reverseBytes(value) : value);
+		}
+
+		boolean compareAndSetLong(long offset, long expected, long value) {
+			return UNSAFE.compareAndSwapLong(null, addressOf(offset), order(expected), order(value));
+		}
+
+		/**
+		 * @return the previous value
+		 */
+		long getAndAddLong(long offset, long delta) {
+			if (!swapped) {
+				return UNSAFE.getAndAddLong(null, addressOf(offset), delta);
+			}
+			long value;
+			do {
+				value = getLongVolatile(offset);
+			} while (!compareAndSetLong(offset, value, value + delta));
+			return value;
+		}
+
+		private long addressOf(long offset) {
+			return addresses[(int) (offset >>> shift)] + (offset & mask);
+		}
+
+		private long order(long value) {
+			return swapped ? Long.reverseBytes(value) : value;
+		}
+
+		void force() {
+			for (ByteBuffer segment : segments) {
+				if (segment instanceof MappedByteBuffer) {
+					((MappedByteBuffer) segment).force();
+				}
+			}
+		}
+	}
+}
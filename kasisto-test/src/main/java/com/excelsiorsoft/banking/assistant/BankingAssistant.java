@@ -3,13 +3,35 @@ package com.excelsiorsoft.banking.assistant;
 import static com.excelsiorsoft.banking.assistant.BankingAssistant.ClassPattern.inCaseOf;
 import static com.excelsiorsoft.banking.assistant.BankingAssistant.ParsingContext.emptyContext;
 
-import java.util.Scanner;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.LongUnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.excelsiorsoft.banking.assistant.BankingAssistant.DisplayResult.DisplayResultBuilder;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.HistoryResult.HistoryResultBuilder;
 import com.excelsiorsoft.banking.assistant.BankingAssistant.TransferResult.TransferResultBuilder;
+import com.excelsiorsoft.banking.assistant.TransferDedupeIndex.Recorded;
+import com.excelsiorsoft.banking.assistant.TransferRuleEngine.Rule;
+import com.excelsiorsoft.banking.assistant.TransferRuleEngine.TransferFacts;
 
 /**
  * This is a driver class.  Please:
@@ -29,23 +51,40 @@ Executing TransferAction withTransferContext [request=Can you transfer from my C
 	logic to validate if transfer is possible
 	logic to actually execute money transfer
 	logic to query destination account for its current balance
-TransferResult [transferParsingContext=TransferContext [request=Can you transfer from my CD 200 dollars to my checking, please?, source=CD, destination=checking, amount=200], sourceAcctNumber=sourceId, sourceAcctAmount=-100.0, destinationAcctNumber=destinationId, destinationAcctAmount=1200.0, isSuccess=true]
+TransferResult [transferParsingContext=TransferContext [request=Can you transfer from my CD 200 dollars to my checking, please?, source=CD, destination=checking, amount=200], sourceAcctNumber=10, sourceAcctAmount=600.0, destinationAcctNumber=8, destinationAcctAmount=1200.0, isSuccess=true, rejectedBy=null]
 
  *   </pre>
  * @author Simeon
  *
  */
 public class BankingAssistant {
+	
+	/** Whether the flow of operations is echoed to the console unless told otherwise; turned off by <code>-Dkasisto.quiet=true</code> */
+	static final boolean DEFAULT_VERBOSE = !Boolean.getBoolean("kasisto.quiet");
 
-
-		public static void main(String... args) {
+		/**
+		 * Console input is recorded for later replay when <code>-Dkasisto.record=&lt;file&gt;</code> is given.
+		 * The vocabulary is read from <code>-Dkasisto.grammar=&lt;file&gt;</code>, and reloaded as it changes, when given.
+		 */
+		public static void main(String... args) throws IOException {
 			
-			ActionController controller = new ActionController();
+			String grammar = System.getProperty("kasisto.grammar");
+			String recording = System.getProperty("kasisto.record");
+			ProcessingBudget budget = ProcessingBudget.fromSystemProperties();
 			
-			try (Scanner scanner = new Scanner(System.in)) {
-				while (scanner.hasNextLine()) {
-					String line = scanner.nextLine();
-					System.out.println("I received your request: '"+line+"'  \nLet me see if I have enough information to start processing it.");
+			// a line cut one char over the limit is still refused by the budget rather than processed in part
+			try (GrammarReloader grammars = grammar == null ? GrammarReloader.fixed(Grammar.defaults()) : GrammarReloader.watch(Paths.get(grammar));
+					LineReader reader = LineReader.of(System.in, budget.maxInputLength() + 1);
+					TrafficRecorder recorder = recording == null ? TrafficRecorder.disabled() : TrafficRecorder.open(Paths.get(recording))) {
+				ActionController controller = ActionController.builder()
+						.withBudget(budget)
+						.withGrammar(grammars)
+						.withAdmission(AdmissionControl.fromSystemProperties())
+						.withRecorder(recorder)
+						.withVerbose(DEFAULT_VERBOSE)
+						.build();
+				for (CharSequence line = reader.nextLine(); line != null; line = reader.nextLine()) {
+					if (DEFAULT_VERBOSE) System.out.println("I received your request: '"+line+"'  \nLet me see if I have enough information to start processing it.");
 					controller.produceAction(line);
 
 				}
@@ -69,63 +108,153 @@ public class BankingAssistant {
 	 *
 	 */
 	public final static class TransferAction implements Action{
+		
+		private final BalanceStore balances;
+		private final TransferDedupeIndex dedupeIndex;
+		private final TransferRuleEngine rules;
+		private final TransferHistory history;
+		private final boolean verbose;
+		private final ThreadLocal<TransferFacts> facts = ThreadLocal.withInitial(TransferFacts::new);
+		private final ThreadLocal<Recorded> recorded = ThreadLocal.withInitial(Recorded::new);
+		private final ThreadLocal<TransferResultBuilder> builders = ThreadLocal.withInitial(TransferResult::builder);
+		
+		/**
+		 * Action keeping no {@link TransferHistory}
+		 */
+		public TransferAction(BalanceStore balances, TransferDedupeIndex dedupeIndex, TransferRuleEngine rules) {
+			this(balances, dedupeIndex, rules, null);
+		}
+		
+		public TransferAction(BalanceStore balances, TransferDedupeIndex dedupeIndex, TransferRuleEngine rules, TransferHistory history) {
+			this(balances, dedupeIndex, rules, history, DEFAULT_VERBOSE);
+		}
+		
+		/**
+		 * @param verbose whether the steps of a transfer are echoed to the console
+		 */
+		public TransferAction(BalanceStore balances, TransferDedupeIndex dedupeIndex, TransferRuleEngine rules, TransferHistory history, boolean verbose) {
+			this.balances = balances;
+			this.dedupeIndex = dedupeIndex;
+			this.rules = rules;
+			this.history = history;
+			this.verbose = verbose;
+		}
 
 		@Override
 		public Result execute(ParsingContext context) {
-			System.out.println("Executing TransferAction with" + context);
+			if (verbose) System.out.println("Executing TransferAction with" + context);
 			TransferContext tContext = (TransferContext) context;
-			// actual logic - this is just tentative code (template)
-			String sourceId = obtainSourceAcctId(tContext);
-			String destId = obtainDestinationAcctId(tContext);
+			if (tContext.amountInMinorUnits() == AmountScanner.NO_AMOUNT) {
+				return Result.notUnderstood("the amount to transfer is missing");
+			}
+			long sourceId = obtainSourceAcctId(tContext);
+			long destId = obtainDestinationAcctId(tContext);
 			
-			double sourceBalance = obtainSourceAcctBalance(sourceId);
-			boolean canTransfer = validate();
-			double amountTransfered = canTransfer ? performTransfer(tContext) : 0;
-			double destBalance = obtainDestinationAcctBalance(tContext, destId);
+			long key = tContext.idempotencyKey;
+			if (key != TransferDedupeIndex.NO_KEY) {
+				Recorded original = recorded.get();
+				if (!dedupeIndex.claim(key, original)) {
+					if (original.isRetryLater()) {
+						return Result.retryLater();
+					}
+					if (verbose) System.out.println("\tthis transfer was submitted before, replaying its result");
+					return result(tContext, sourceId, destId, original.isSuccess(), original.getRejection(), original.getSourceBalance(), original.getDestinationBalance());
+				}
+			}
 			
-			TransferResultBuilder builder = TransferResult.builder();
+			try {
+				long amount = tContext.amountInMinorUnits();
+				int today = BalanceStore.today();
+				long sourceBalance = obtainSourceAcctBalance(sourceId);
+				int rejection = validate(tContext, sourceId, destId, amount, sourceBalance, today);
+				if (rejection == TransferRuleEngine.PASSED) {
+					// balance or daily total may have changed since validation, the store checks both again atomically
+					rejection = rejectionOf(performTransfer(sourceId, destId, amount, today));
+				}
+				boolean transfered = rejection == TransferRuleEngine.PASSED;
+				if (transfered && history != null) {
+					history.record(sourceId, destId, amount);
+				}
+				long sourceBalanceAfter = transfered ? sourceBalance - amount : sourceBalance;
+				long destBalance = obtainDestinationAcctBalance(destId);
+				
+				if (key != TransferDedupeIndex.NO_KEY) {
+					dedupeIndex.complete(key, transfered, rejection, sourceBalanceAfter, destBalance);
+				}
+				return result(tContext, sourceId, destId, transfered, rejection, sourceBalanceAfter, destBalance);
+			} catch (RuntimeException e) {
+				if (key != TransferDedupeIndex.NO_KEY) {
+					dedupeIndex.abandon(key);
+				}
+				throw e;
+			}
+		}
+		
+		private TransferResult result(TransferContext tContext, long sourceId, long destId, boolean transfered, int rejection, long sourceBalance, long destBalance) {
+			// every field is set again below, so the builder of the thread is reused as is
+			TransferResultBuilder builder = builders.get();
 			TransferResult transfer = builder.withTransferParsingContext(tContext)
-					.isSuccess(amountTransfered == Double.parseDouble(tContext.amount))
-					.withSourceAcctNumber(sourceId)
-					.withSourceAcctAmount(sourceBalance - Double.parseDouble(tContext.amount))
-					.withDestinationAcctNumber(destId)
-					.withDestinationAcctAmount(destBalance).build();
+					.isSuccess(transfered)
+					.rejectedBy(Rule.ofCode(rejection))
+					.withSourceAcctNumber(Long.toString(sourceId))
+					.withSourceAcctAmount(amountOf(sourceBalance))
+					.withDestinationAcctNumber(Long.toString(destId))
+					.withDestinationAcctAmount(amountOf(destBalance)).build();
 			return transfer;
 		}
 
-		private Double obtainDestinationAcctBalance(TransferContext context, String destId) {
-			System.out.println("\tlogic to query destination account for its current balance");
-			return 1000d+Double.parseDouble(context.amount);
+		private long obtainDestinationAcctBalance(long destId) {
+			if (verbose) System.out.println("\tlogic to query destination account for its current balance");
+			return balances.balance(destId);
 		}
 
-		private double performTransfer(TransferContext context) {
-			System.out.println("\tlogic to actually execute money transfer"); 
-			return Double.parseDouble(context.amount);
+		private int performTransfer(long sourceId, long destId, long amount, int today) {
+			if (verbose) System.out.println("\tlogic to actually execute money transfer"); 
+			return balances.transfer(sourceId, destId, amount, today, rules.dailyLimit());
 			
 		}
+		
+		private static int rejectionOf(int outcome) {
+			switch (outcome) {
+			case BalanceStore.TRANSFERRED:
+				return TransferRuleEngine.PASSED;
+			case BalanceStore.UNKNOWN_ACCOUNT:
+				return Rule.KNOWN_ACCOUNTS.code();
+			case BalanceStore.OVER_DAILY_LIMIT:
+				return Rule.DAILY_LIMIT.code();
+			default:
+				return Rule.SUFFICIENT_FUNDS.code();
+			}
+		}
 
-		private String obtainDestinationAcctId(TransferContext context) {
-			//assuming that it's possible to get the account id based on the user credentials or some other info available outside of TransferContext, i.e. cookies, etc.
-			//otherwise will need to pose a question to the user to obtain that context
-			System.out.println("\tlogic to obtain id of the destination account");
-			return "destinationId";
+		private long obtainDestinationAcctId(TransferContext context) {
+			//account ids are derived from the user id carried by the context and the account type
+			if (verbose) System.out.println("\tlogic to obtain id of the destination account");
+			return AccountType.accountIdOf(context.userId, context.destination);
 		}
 
-		private boolean validate() {
-			System.out.println("\tlogic to validate if transfer is possible");
-			return true;
+		/**
+		 * @return {@link TransferRuleEngine#PASSED} or code of the rule rejecting the transfer
+		 */
+		private int validate(TransferContext context, long sourceId, long destId, long amount, long sourceBalance, int today) {
+			if (verbose) System.out.println("\tlogic to validate if transfer is possible");
+			AccountType sourceType = AccountType.of(context.source);
+			TransferFacts transferFacts = facts.get()
+					.set(sourceId, destId, sourceType == null ? -1 : sourceType.ordinal(), amount)
+					.withSourceState(sourceBalance, balances.transferredOn(sourceId, today), today, balances.maturityDay(sourceId))
+					.withDestinationKnown(balances.contains(destId));
+			return rules.evaluate(transferFacts);
 		}
 
-		private double obtainSourceAcctBalance(String sourceId) {
-			System.out.println("\tlogic to obtain source acct balance");
-			return 100d;
+		private long obtainSourceAcctBalance(long sourceId) {
+			if (verbose) System.out.println("\tlogic to obtain source acct balance");
+			return balances.balance(sourceId);
 		}
 
-		private String obtainSourceAcctId(TransferContext context) {
-			//assuming that it's possible to get the account id based on the user credentials or some other info available outside of TransferContext, i.e. cookies, etc.
-			//otherwise will need to pose a question to the user to obtain that context
-			System.out.println("\tlogic to obtain source acct id");
-			return "sourceId";
+		private long obtainSourceAcctId(TransferContext context) {
+			//account ids are derived from the user id carried by the context and the account type
+			if (verbose) System.out.println("\tlogic to obtain source acct id");
+			return AccountType.accountIdOf(context.userId, context.source);
 		}
 		
 	}
@@ -136,132 +265,1176 @@ public class BankingAssistant {
 	 *
 	 */
 	public final static class DisplayAction implements Action{
+		
+		/** Time all lookups of an all-accounts inquiry get together */
+		public static final long DEFAULT_LOOKUP_DEADLINE_MILLIS = 200;
+		
+		/**
+		 * Threads of the all-accounts lookups by default. The inquiry waits for its lookups, and it may itself 
+		 * run as a clause task on the common pool, so they must not queue behind it on that same pool.
+		 */
+		static final Executor DEFAULT_LOOKUP_EXECUTOR = Executors.newFixedThreadPool(
+				Math.max(AccountType.all().length, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+					private final AtomicInteger created = new AtomicInteger();
+					
+					@Override
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "balance-lookup-" + created.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		
+		private final BalanceStore balances;
+		private final LongUnaryOperator lookup;
+		private final Executor lookupExecutor;
+		private final long lookupDeadlineNanos;
+		private final boolean verbose;
+		
+		public DisplayAction(BalanceStore balances) {
+			this(balances, DEFAULT_LOOKUP_EXECUTOR, TimeUnit.MILLISECONDS.toNanos(DEFAULT_LOOKUP_DEADLINE_MILLIS));
+		}
+		
+		public DisplayAction(BalanceStore balances, Executor lookupExecutor, long lookupDeadlineNanos) {
+			this(balances, lookupExecutor, lookupDeadlineNanos, DEFAULT_VERBOSE);
+		}
+		
+		/**
+		 * @param verbose whether the steps of an inquiry are echoed to the console
+		 */
+		public DisplayAction(BalanceStore balances, Executor lookupExecutor, long lookupDeadlineNanos, boolean verbose) {
+			this(balances, balances::balance, lookupExecutor, lookupDeadlineNanos, verbose);
+		}
+		
+		/**
+		 * @param lookup balance of an account id, {@link BalanceStore#NO_BALANCE} for an unknown one
+		 */
+		DisplayAction(BalanceStore balances, LongUnaryOperator lookup, Executor lookupExecutor, long lookupDeadlineNanos, boolean verbose) {
+			this.balances = balances;
+			this.lookup = lookup;
+			this.lookupExecutor = lookupExecutor;
+			this.lookupDeadlineNanos = lookupDeadlineNanos;
+			this.verbose = verbose;
+		}
 
 		@Override
 		public Result execute(ParsingContext context) {
-			System.out.println("Executing DisplayAction" + context);
+			if (verbose) System.out.println("Executing DisplayAction" + context);
 			DisplayContext dContext = (DisplayContext) context;
-			// actual logic - this is just tentative code (template)
+			if (dContext.isAllAccounts()) {
+				return executeForAllAccounts(dContext);
+			}
 			DisplayResultBuilder builder = DisplayResult.builder();
 			
-			String targetAcctNumber = obtainTargetAcctNumber();
+			long targetAcctNumber = obtainTargetAcctNumber(dContext);
+			long targetAcctAmount = obtainTargetAccountAmount(targetAcctNumber);
 			DisplayResult display = builder
 					.withDisplayParsingContext(dContext)
-					.withTargetAcctNumber(targetAcctNumber)
-					.withTargetAcctAmount(obtainTargetAccountAmount(targetAcctNumber))
-					.isSuccess(true)
+					.withTargetAcctNumber(Long.toString(targetAcctNumber))
+					.withTargetAcctAmount(amountOf(targetAcctAmount))
+					.isSuccess(targetAcctAmount != BalanceStore.NO_BALANCE)
 					.build();
 			return display;
 		}
 
-		private double obtainTargetAccountAmount(String acctNum) {
-			System.out.println("\tlogic to query target account for its current balance");
-			return 800d;
+		private long obtainTargetAccountAmount(long acctNum) {
+			if (verbose) System.out.println("\tlogic to query target account for its current balance");
+			return lookup.applyAsLong(acctNum);
+		}
+		
+		/**
+		 * Looks every account of the user up concurrently, waiting for all of them until one common deadline.
+		 * Accounts not answered in time are reported as missing rather than failing the inquiry.
+		 */
+		private Result executeForAllAccounts(DisplayContext context) {
+			if (verbose) System.out.println("\tlogic to query every account of the user for its current balance");
+			long deadline = System.nanoTime() + lookupDeadlineNanos;
+			
+			List<AccountType> held = new ArrayList<>();
+			List<CompletableFuture<Long>> lookups = new ArrayList<>();
+			for (AccountType type : AccountType.all()) {
+				long accountId = type.accountIdOf(context.userId);
+				if (balances.contains(accountId)) {
+					held.add(type);
+					lookups.add(CompletableFuture.supplyAsync(() -> lookup.applyAsLong(accountId), lookupExecutor));
+				}
+			}
+			
+			DisplayResultBuilder builder = DisplayResult.builder().withDisplayParsingContext(context);
+			long total = 0;
+			boolean found = false;
+			for (int i = 0; i < held.size(); i++) {
+				AccountType type = held.get(i);
+				long balance = awaitBalance(lookups.get(i), deadline);
+				if (balance == BalanceStore.NO_BALANCE) {
+					builder.withMissingAccount(type);
+				} else {
+					builder.withAccount(type, Long.toString(type.accountIdOf(context.userId)), amountOf(balance));
+					total += balance;
+					found = true;
+				}
+			}
+			return builder.withTotalAmount(amountOf(total)).isSuccess(found).build();
+		}
+		
+		private static long awaitBalance(CompletableFuture<Long> lookup, long deadline) {
+			try {
+				return lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException | ExecutionException e) {
+				lookup.cancel(false);
+				return BalanceStore.NO_BALANCE;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return BalanceStore.NO_BALANCE;
+			}
 		}
 
-		private String obtainTargetAcctNumber() {
-			//assuming that it's possible to get the account id based on the user credentials or some other info available outside of TransferContext, i.e. cookies, etc.
-			//otherwise will need to pose a question to the user to obtain that context
-			System.out.println("\tlogic to obtain target acct id");
-			return "targetAcctNumber";
+		private long obtainTargetAcctNumber(DisplayContext context) {
+			//account ids are derived from the user id carried by the context and the account type
+			if (verbose) System.out.println("\tlogic to obtain target acct id");
+			return AccountType.accountIdOf(context.userId, context.target);
+		}
+		
+	}
+	
+	/**
+	 * Encapsulates steps involved in looking up past transfers
+	 * @author Simeon
+	 *
+	 */
+	public final static class HistoryAction implements Action{
+		
+		private final TransferHistory history;
+		private final boolean verbose;
+		
+		public HistoryAction(TransferHistory history) {
+			this(history, DEFAULT_VERBOSE);
+		}
+		
+		/**
+		 * @param verbose whether the steps of an inquiry are echoed to the console
+		 */
+		public HistoryAction(TransferHistory history, boolean verbose) {
+			this.history = history;
+			this.verbose = verbose;
+		}
+		
+		@Override
+		public Result execute(ParsingContext context) {
+			if (verbose) System.out.println("Executing HistoryAction" + context);
+			HistoryContext hContext = (HistoryContext) context;
+			HistoryResultBuilder builder = HistoryResult.builder().withHistoryParsingContext(hContext);
+			AccountType target = hContext.target == null ? null : AccountType.of(hContext.target);
+			if (hContext.target != null && target == null) {
+				return builder.isSuccess(false).build();
+			}
+			
+			if (verbose) System.out.println("\tlogic to read past transfers of the account(s)");
+			for (AccountType type : target == null ? AccountType.all() : new AccountType[] {target}) {
+				TransferHistory.Visitor collect = (millis, counterpartyId, amount) -> {
+					// between two accounts of the user, the outgoing side is enough when all accounts are listed
+					if (target == null && amount > 0 && AccountType.ofAccount(hContext.userId, counterpartyId) != null) return;
+					builder.withTransfer(type, millis, counterpartyOf(hContext.userId, counterpartyId), amountOf(amount));
+				};
+				long accountId = type.accountIdOf(hContext.userId);
+				if (hContext.isPeriod()) {
+					history.between(accountId, hContext.fromMillis, hContext.toMillis, collect);
+				} else {
+					history.last(accountId, hContext.count, collect);
+				}
+			}
+			return builder.keepingLatest(hContext.count).isSuccess(true).build();
+		}
+		
+		/**
+		 * Other account of a transfer: its type when it belongs to the user, its number otherwise
+		 */
+		private static String counterpartyOf(long userId, long accountId) {
+			AccountType own = AccountType.ofAccount(userId, accountId);
+			return own != null ? own.name().toLowerCase() : Long.toString(accountId);
+		}
+	}
+	
+	/**
+	 * Kinds of accounts a user may hold. An account id is the user id with the account type in its low bits.
+	 * @author Simeon
+	 *
+	 */
+	public enum AccountType {
+		CHECKING, SAVINGS, CD;
+		
+		/** Id of an account that could not be resolved */
+		public static final long NO_ACCOUNT = -1;
+		
+		/** {@link #values()} copies the array on every call */
+		private static final AccountType[] TYPES = values();
+		
+		public long accountIdOf(long userId) {
+			return (userId << 3) | ordinal();
+		}
+		
+		/**
+		 * @return account type named (in any case) by <code>name</code> or null
+		 */
+		public static AccountType of(String name) {
+			for (AccountType type : TYPES) {
+				if (type.name().equalsIgnoreCase(name)) return type;
+			}
+			return null;
+		}
+		
+		static long accountIdOf(long userId, String name) {
+			AccountType type = of(name);
+			return type == null ? NO_ACCOUNT : type.accountIdOf(userId);
 		}
 		
+		/**
+		 * @return type of an account of the given user, or null for an account of another user
+		 */
+		static AccountType ofAccount(long userId, long accountId) {
+			int type = (int) (accountId & 7);
+			return accountId >>> 3 == userId && type < TYPES.length ? TYPES[type] : null;
+		}
+		
+		/**
+		 * Every type, without copying
+		 */
+		static AccountType[] all() {
+			return TYPES;
+		}
+	}
+	
+	/**
+	 * Minor units (cents) to the amount shown to the user
+	 */
+	static double amountOf(long minorUnits) {
+		return minorUnits == BalanceStore.NO_BALANCE ? Double.NaN : minorUnits / 100d;
 	}
 	
 	/**
 	 * Traffic controller which
 	 * <li> accepts the user input
-	 * <li> parses it 
-	 * <li>dispatches to an appropriate action
+	 * <li> splits it into clauses, i.e. 'Move $50 from savings to checking and tell me my CD balance'
+	 * <li> parses each of them 
+	 * <li>dispatches to an appropriate action, running independent clauses concurrently
 	 * @author Simeon
 	 *
 	 */
 	public static final class ActionController{
 		
-		private final Pattern transferPattern = Pattern.compile(".?([Tt]ransfer|[Ss]end|[Mm]ove).?");
-		private final Pattern displayPattern = Pattern.compile(".?([Bb]alance|[Vv]iew|[Ss]how).?");
+		private final Pattern clauseDelimiter = Pattern.compile("(?:[,;]\\s+)?\\b(and then|then|and also|also|and)\\b|[,;]\\s+", Pattern.CASE_INSENSITIVE);
+		private final ThreadLocal<Matcher> delimiters = ThreadLocal.withInitial(() -> clauseDelimiter.matcher(""));
+		
+		/** User on whose behalf console input is processed */
+		public static final long DEFAULT_USER_ID = 1;
+		
+		private final ActionMatcher actionMatcher;
+		
+		private final ProcessingBudget budget;
+		private final Executor clauseExecutor;
+		private final StageListener stageListener;
+		private final IntentClassifier classifier;
+		private final GrammarReloader grammars;
+		private final AdmissionControl admission;
+		private final ShardedExecutor shards;
+		private final TrafficRecorder recorder;
+		private final boolean verbose;
+		private final ThreadLocal<float[]> probabilities = ThreadLocal.withInitial(IntentClassifier::newProbabilities);
+		
+		public ActionController() {
+			this(ProcessingBudget.defaultBudget());
+		}
+		
+		public ActionController(ProcessingBudget budget) {
+			this(builder().withBudget(budget));
+		}
+		
+		private ActionController(ActionControllerBuilder builder) {
+			this.budget = builder.budget;
+			this.clauseExecutor = builder.clauseExecutor;
+			this.stageListener = builder.stageListener;
+			this.shards = builder.shards;
+			this.recorder = builder.recorder != null ? builder.recorder : TrafficRecorder.disabled();
+			this.verbose = builder.verbose;
+			this.admission = builder.admission != null ? builder.admission : AdmissionControl.unlimited();
+			this.classifier = builder.classifier;
+			this.grammars = builder.grammars != null ? builder.grammars : GrammarReloader.fixed(Grammar.defaults());
+			BalanceStore balances = builder.balances != null ? builder.balances : demoBalances();
+			TransferDedupeIndex dedupeIndex = builder.dedupeIndex != null ? builder.dedupeIndex 
+					: new TransferDedupeIndex(1 << 16, 10, TimeUnit.MINUTES);
+			TransferRuleEngine rules = builder.rules != null ? builder.rules : TransferRuleEngine.defaults();
+			TransferHistory history = builder.history != null ? builder.history : TransferHistory.forStore(balances);
+			Executor lookupExecutor = builder.lookupExecutor;
+			long lookupDeadlineNanos = builder.lookupDeadlineNanos;
+			// actions keep no per-request state, one instance of each serves every request
+			this.actionMatcher = new ActionMatcher(
+				    inCaseOf(TransferContext.class,  new TransferAction(balances, dedupeIndex, rules, history, verbose)::execute),
+				    inCaseOf(DisplayContext.class, new DisplayAction(balances, lookupExecutor, lookupDeadlineNanos, verbose)::execute),
+				    inCaseOf(HistoryContext.class, new HistoryAction(history, verbose)::execute),
+				    inCaseOf(ClarificationContext.class, ClarificationContext::clarify),
+				    inCaseOf(NullContext.class, context -> Result.emptyContext())
+				);
+		}
+		
+		public static ActionControllerBuilder builder() {
+			return new ActionControllerBuilder();
+		}
+		
+		public final static class ActionControllerBuilder {
+			
+			private ProcessingBudget budget = ProcessingBudget.defaultBudget();
+			private Executor clauseExecutor = ForkJoinPool.commonPool();
+			private BalanceStore balances;
+			private TransferDedupeIndex dedupeIndex;
+			private TransferRuleEngine rules;
+			private TransferHistory history;
+			private StageListener stageListener;
+			private IntentClassifier classifier;
+			private GrammarReloader grammars;
+			private AdmissionControl admission;
+			private ShardedExecutor shards;
+			private TrafficRecorder recorder;
+			private Executor lookupExecutor = DisplayAction.DEFAULT_LOOKUP_EXECUTOR;
+			private long lookupDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(DisplayAction.DEFAULT_LOOKUP_DEADLINE_MILLIS);
+			private boolean verbose = DEFAULT_VERBOSE;
+			
+			public ActionControllerBuilder withBudget(ProcessingBudget budget) {
+				this.budget = budget;
+				return this;
+			}
+			
+			public ActionControllerBuilder withClauseExecutor(Executor clauseExecutor) {
+				this.clauseExecutor = clauseExecutor;
+				return this;
+			}
+			
+			public ActionControllerBuilder withBalances(BalanceStore balances) {
+				this.balances = balances;
+				return this;
+			}
+			
+			public ActionControllerBuilder withDedupeIndex(TransferDedupeIndex dedupeIndex) {
+				this.dedupeIndex = dedupeIndex;
+				return this;
+			}
+			
+			public ActionControllerBuilder withRules(TransferRuleEngine rules) {
+				this.rules = rules;
+				return this;
+			}
+			
+			/**
+			 * Where successful transfers are recorded and history inquiries are answered from
+			 */
+			public ActionControllerBuilder withHistory(TransferHistory history) {
+				this.history = history;
+				return this;
+			}
+			
+			public ActionControllerBuilder withStageListener(StageListener stageListener) {
+				this.stageListener = stageListener;
+				return this;
+			}
+			
+			/**
+			 * Classifier used instead of the one of the grammar
+			 */
+			public ActionControllerBuilder withClassifier(IntentClassifier classifier) {
+				this.classifier = classifier;
+				return this;
+			}
+			
+			/**
+			 * Source of the vocabulary, {@link Grammar#defaults()} when not given
+			 */
+			public ActionControllerBuilder withGrammar(GrammarReloader grammars) {
+				this.grammars = grammars;
+				return this;
+			}
+			
+			/**
+			 * Executor the requests passed to {@link ActionController#submit} are serialized per user on
+			 */
+			public ActionControllerBuilder withShards(ShardedExecutor shards) {
+				this.shards = shards;
+				return this;
+			}
+			
+			/**
+			 * Rate limits applied before a request is parsed, none when not given
+			 */
+			public ActionControllerBuilder withAdmission(AdmissionControl admission) {
+				this.admission = admission;
+				return this;
+			}
+			
+			/**
+			 * Where requests are recorded once admitted and within the budget, none when not given
+			 */
+			public ActionControllerBuilder withRecorder(TrafficRecorder recorder) {
+				this.recorder = recorder;
+				return this;
+			}
+			
+			/**
+			 * Where the balances of an all-accounts inquiry are looked up, and how long they may take together.
+			 * The executor must not be the one clauses run on, as an inquiry blocks its clause task until its lookups end.
+			 */
+			public ActionControllerBuilder withLookups(Executor lookupExecutor, long deadlineMillis) {
+				this.lookupExecutor = lookupExecutor;
+				this.lookupDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+				return this;
+			}
+			
+			/**
+			 * Whether requests, their parsing and the steps of their actions are echoed to the console;
+			 * by default unless <code>-Dkasisto.quiet=true</code> is given
+			 */
+			public ActionControllerBuilder withVerbose(boolean verbose) {
+				this.verbose = verbose;
+				return this;
+			}
+			
+			public ActionController build() {
+				return new ActionController(this);
+			}
+		}
 		
-		private ActionMatcher actionMatcher = new ActionMatcher(
-			    inCaseOf(TransferContext.class,  new TransferAction()::execute),
-			    inCaseOf(DisplayContext.class, context -> new DisplayAction().execute(context))
-			);
+		/**
+		 * Small store holding the accounts of {@link #DEFAULT_USER_ID}
+		 */
+		static BalanceStore demoBalances() {
+			BalanceStore balances = BalanceStore.allocateDirect(1024);
+			balances.open(AccountType.CHECKING.accountIdOf(DEFAULT_USER_ID), 1000_00);
+			balances.open(AccountType.SAVINGS.accountIdOf(DEFAULT_USER_ID), 500_00);
+			balances.open(AccountType.CD.accountIdOf(DEFAULT_USER_ID), 800_00);
+			balances.setMaturityDay(AccountType.CD.accountIdOf(DEFAULT_USER_ID), (int) LocalDate.of(2017, 6, 1).toEpochDay());
+			return balances;
+		}
 						
-		public void produceAction(String line){
+		public Result produceAction(CharSequence line){
+			return produceAction(DEFAULT_USER_ID, line);
+		}
+		
+		public Result produceAction(long userId, CharSequence line){
+			return produceAction(userId, TransferDedupeIndex.NO_KEY, line);
+		}
+		
+		/**
+		 * A request over the limits of the {@link AdmissionControl} is answered with a {@link RateLimitedResult}
+		 * without being parsed. Every request is recorded as it arrives, so that a replay meets the same bursts.
+		 * @param idempotencyKey client supplied key making retries of the same transfer request harmless,
+		 * or {@link TransferDedupeIndex#NO_KEY}
+		 */
+		public Result produceAction(long userId, long idempotencyKey, CharSequence line){
+			
+			record(userId, line);
+			if (!admission.tryAcquire(userId)) {
+				if (verbose) System.out.println(Result.rateLimited());
+				if (stageListener != null) {
+					stageListener.onRequest(Collections.emptyList(), Result.rateLimited(), 0, 0);
+				}
+				return Result.rateLimited();
+			}
+			long started = stageListener == null ? 0 : System.nanoTime();
+			long parsed = started;
+			List<Clause> clauses = Collections.emptyList();
+			Result result;
+			try {
+				BudgetedInput input = budget.admit(line);
+				
+				clauses = segment(grammars.current(), userId, idempotencyKey, input);
+				for (Clause clause : clauses) {
+					if (verbose) System.out.println(clause.context);
+				}
+				parsed = stageListener == null ? 0 : System.nanoTime();
+				result = clauses.size() == 1 ? actionMatcher.matchFor(clauses.get(0).context) : execute(clauses);
+			} catch (BudgetExceededException e) {
+				parsed = stageListener == null ? 0 : System.nanoTime();
+				result = Result.notUnderstood(e.getMessage());
+			}
+			if (verbose) System.out.println(result);
+			if (stageListener != null) {
+				List<ParsingContext> contexts = new ArrayList<>(clauses.size());
+				for (Clause clause : clauses) {
+					contexts.add(clause.context);
+				}
+				stageListener.onRequest(contexts, result, parsed - started, System.nanoTime() - parsed);
+			}
+			return result;
+		}
+		
+		/**
+		 * A failing recording must not fail the request it records
+		 */
+		private void record(long userId, CharSequence input) {
+			try {
+				recorder.record(userId, input);
+			} catch (IOException e) {
+				System.err.println("Could not record request: " + e);
+			}
+		}
+		
+		/**
+		 * Processes the request on the shard of the user, after any request of the same user submitted before it.
+		 * Without a {@link ShardedExecutor} the request is processed on the calling thread.
+		 * @return future failed with a {@link java.util.concurrent.RejectedExecutionException} when the shard is saturated
+		 */
+		public CompletableFuture<Result> submit(long userId, long idempotencyKey, String line) {
+			if (shards == null) {
+				return CompletableFuture.completedFuture(produceAction(userId, idempotencyKey, line));
+			}
+			return shards.submit(userId, () -> produceAction(userId, idempotencyKey, line));
+		}
+		
+		/**
+		 * Splits the input on clause delimiters and parses every clause carrying an intent.
+		 * Fragments without one ('please', 'and savings?'), or whose intent is not certain enough, 
+		 * stay attached to their neighbour. An input without any confident clause asks for clarification.
+		 */
+		List<Clause> segment(long userId, long idempotencyKey, BudgetedInput input) {
+			return segment(grammars.current(), userId, idempotencyKey, input);
+		}
+		
+		/**
+		 * @param grammar snapshot the whole request is parsed with, however the grammar changes meanwhile
+		 */
+		private List<Clause> segment(Grammar grammar, long userId, long idempotencyKey, BudgetedInput input) {
+			IntentClassifier classifier = this.classifier != null ? this.classifier : grammar.classifier();
+			List<Clause> clauses = new ArrayList<>();
+			Matcher delimiter = delimiters.get().reset(input);
+			
+			// a delimiter only ends a clause when the text before it is a complete request; 
+			// fragments are joined with what follows them
+			int start = 0;
+			boolean ordered = false;
+			boolean more = true;
+			while (more) {
+				more = delimiter.find();
+				int end = more ? delimiter.start() : input.length();
+				CharSequence segment = input.subSequence(start, end);
+				Intent intent = intentOf(classifier, segment);
+				
+				if (isComplete(grammar, intent, segment)) {
+					clauses.add(new Clause(intent, start, end, ordered));
+					if (more) {
+						ordered = delimiter.start(1) >= 0 && endsWithThen(input, delimiter.end(1));
+						start = delimiter.end();
+					}
+				} else if (!more && !clauses.isEmpty()) {
+					// a trailing fragment is no request of its own, it belongs to the clause before it
+					clauses.get(clauses.size() - 1).end = end;
+				}
+			}
+			// the matcher outlives the request, it must not keep its text
+			delimiter.reset("");
+			
+			if (clauses.isEmpty()) {
+				// no complete request: the whole line is one, possibly missing slots, or a clarification when unsure
+				Intent intent = classifier.classify(input, probabilities.get());
+				clauses.add(new Clause(classifier.isConfident(intent, probabilities.get()) ? intent : null, 0, input.length(), false));
+			}
+			for (int i = 0; i < clauses.size(); i++) {
+				Clause clause = clauses.get(i);
+				long clauseKey = idempotencyKey == TransferDedupeIndex.NO_KEY ? idempotencyKey : clauseKey(userId, idempotencyKey, i);
+				clause.context = parse(grammar, clause.intent, userId, clauseKey, (BudgetedInput) input.subSequence(clause.start, clause.end));
+			}
+			return clauses;
+		}
+		
+		/**
+		 * Whether the text is a request of its own: a confident intent with the slots that intent needs,
+		 * i.e. a transfer names an amount and both accounts
+		 */
+		private static boolean isComplete(Grammar grammar, Intent intent, CharSequence text) {
+			switch (intent) {
+			case NONE:
+				return false;
+			case TRANSFER:
+				return grammar.amount(text) != AmountScanner.NO_AMOUNT && !grammar.source(text).isEmpty() && !grammar.destination(text).isEmpty();
+			default:
+				return true;
+			}
+		}
+		
+		/**
+		 * Whether the conjunction ending at <code>end</code> is a 'then', read in place rather than as a group string
+		 */
+		private static boolean endsWithThen(CharSequence input, int end) {
+			String then = "then";
+			if (end < then.length()) return false;
+			for (int i = 0; i < then.length(); i++) {
+				if (Character.toLowerCase(input.charAt(end - then.length() + i)) != then.charAt(i)) return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * @return confidently scored intent of the segment, {@link Intent#NONE} otherwise
+		 */
+		private Intent intentOf(IntentClassifier classifier, CharSequence segment) {
+			float[] scores = probabilities.get();
+			Intent intent = classifier.classify(segment, scores);
+			return classifier.isConfident(intent, scores) ? intent : Intent.NONE;
+		}
+		
+		/**
+		 * Scopes a client key to the user and to the clause of the request it was sent with
+		 */
+		private static long clauseKey(long userId, long idempotencyKey, int clause) {
+			long key = BalanceStore.hash(BalanceStore.hash(userId) ^ idempotencyKey) + clause;
+			return key == TransferDedupeIndex.NO_KEY ? 1 : key;
+		}
+		
+		private ParsingContext parse(Grammar grammar, Intent intent, long userId, long idempotencyKey, BudgetedInput clause) {
+			if (intent == null) {
+				return new ClarificationContext(clause.toString(), probabilities.get());
+			}
+			switch (intent) {
+			case TRANSFER:
+				return new TransferContext(grammar, userId, idempotencyKey, clause);
+			case DISPLAY:
+				return new DisplayContext(grammar, userId, clause);
+			case HISTORY:
+				return new HistoryContext(grammar, userId, clause);
+			default:
+				return emptyContext();
+			}
+		}
+		
+		/**
+		 * Clauses touching the same account (with at least one of them moving money) or chained 
+		 * with 'then' run in order on one task; unrelated groups run concurrently.
+		 */
+		private Result execute(List<Clause> clauses) {
+			int[] group = groupDependent(clauses);
+			Result[] results = new Result[clauses.size()];
+			List<CompletableFuture<Void>> pending = new ArrayList<>();
+			
+			for (int root = 0; root < group.length; root++) {
+				if (group[root] != root) continue;
+				final int first = root;
+				pending.add(CompletableFuture.runAsync(() -> {
+					for (int i = first; i < group.length; i++) {
+						if (group[i] == first) {
+							results[i] = actionMatcher.matchFor(clauses.get(i).context);
+						}
+					}
+				}, clauseExecutor));
+			}
+			
+			try {
+				CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()])).join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw e;
+			}
+			return new CompositeResult(Arrays.asList(results));
+		}
+		
+		/**
+		 * @return for every clause the index of the earliest clause of its dependency group
+		 */
+		static int[] groupDependent(List<Clause> clauses) {
+			int[] group = new int[clauses.size()];
+			for (int i = 0; i < group.length; i++) {
+				group[i] = i;
+				for (int j = 0; j < i; j++) {
+					boolean dependent = (j == i - 1 && clauses.get(i).ordered) 
+							|| dependent(clauses.get(i).context, clauses.get(j).context);
+					if (dependent) {
+						merge(group, group[j], group[i]);
+					}
+				}
+			}
+			return group;
+		}
+		
+		private static void merge(int[] group, int a, int b) {
+			int into = Math.min(a, b), from = Math.max(a, b);
+			for (int k = 0; k < group.length; k++) {
+				if (group[k] == from) group[k] = into;
+			}
+		}
+		
+		private static boolean dependent(ParsingContext a, ParsingContext b) {
+			if (!(a instanceof TransferContext) && !(b instanceof TransferContext)) return false;
+			for (String x : accountsOf(a)) {
+				for (String y : accountsOf(b)) {
+					if (x.isEmpty() || y.isEmpty() || x.equalsIgnoreCase(y)) return true;
+				}
+			}
+			return false;
+		}
+		
+		private static String[] accountsOf(ParsingContext context) {
+			if (context instanceof TransferContext) {
+				TransferContext tContext = (TransferContext) context;
+				return new String[] {tContext.source, tContext.destination};
+			}
+			if (context instanceof DisplayContext) {
+				// an inquiry of all accounts touches every account
+				String target = ((DisplayContext) context).target;
+				return new String[] {target == null ? "" : target};
+			}
+			if (context instanceof HistoryContext) {
+				String target = ((HistoryContext) context).target;
+				return new String[] {target == null ? "" : target};
+			}
+			return new String[0];
+		}
+		
+		/**
+		 * Observes every request once it is answered, with the time spent in each stage: 
+		 * parsing (admission, segmentation, slot extraction) and execution of the actions.
+		 * A request turned away by the {@link AdmissionControl} comes without contexts and takes no time.
+		 */
+		public interface StageListener {
+			void onRequest(List<ParsingContext> contexts, Result result, long parseNanos, long executeNanos);
+		}
+		
+		static final class Clause {
+			
+			private final Intent intent;
+			private final int start;
+			private int end;
+			private final boolean ordered;
+			private ParsingContext context;
+			
+			Clause(Intent intent, int start, int end, boolean ordered) {
+				this.intent = intent;
+				this.start = start;
+				this.end = end;
+				this.ordered = ordered;
+			}
+			
+			ParsingContext context() {
+				return context;
+			}
+		}
+	}
+	
+	/**
+	 * Kinds of requests the assistant is able to act upon
+	 * @author Simeon
+	 *
+	 */
+	public enum Intent {
+		TRANSFER("transfer money"), DISPLAY("see a balance"), HISTORY("see past transfers"), NONE("something else");
+		
+		private static final Intent[] INTENTS = values();
+		
+		private final String description;
+		
+		private Intent(String description) {
+			this.description = description;
+		}
+		
+		public String getDescription() {
+			return description;
+		}
+		
+		/**
+		 * Every intent, without copying
+		 */
+		static Intent[] all() {
+			return INTENTS;
+		}
+	}
+	
+	/**
+	 * Per-request processing limits: maximum input length, maximum number of tokens and 
+	 * a wall-clock deadline for slot extraction. Keeps a single pathological line from 
+	 * monopolizing a worker.
+	 * @author Simeon
+	 *
+	 */
+	public static final class ProcessingBudget {
+		
+		public static final int DEFAULT_MAX_INPUT_LENGTH = 4096;
+		public static final int DEFAULT_MAX_TOKENS = 256;
+		public static final long DEFAULT_DEADLINE_MILLIS = 50;
+		
+		private final int maxInputLength;
+		private final int maxTokens;
+		private final long deadlineNanos;
+		
+		private ProcessingBudget(ProcessingBudgetBuilder builder) {
+			this.maxInputLength = builder.maxInputLength;
+			this.maxTokens = builder.maxTokens;
+			this.deadlineNanos = builder.deadlineNanos;
+		}
+		
+		public static ProcessingBudget defaultBudget() {
+			return builder().build();
+		}
+		
+		/**
+		 * Reads <code>kasisto.budget.maxInputLength</code>, <code>kasisto.budget.maxTokens</code> and 
+		 * <code>kasisto.budget.deadlineMillis</code>, falling back to defaults 
+		 */
+		public static ProcessingBudget fromSystemProperties() {
+			return builder()
+					.withMaxInputLength(Integer.getInteger("kasisto.budget.maxInputLength", DEFAULT_MAX_INPUT_LENGTH))
+					.withMaxTokens(Integer.getInteger("kasisto.budget.maxTokens", DEFAULT_MAX_TOKENS))
+					.withDeadlineMillis(Long.getLong("kasisto.budget.deadlineMillis", DEFAULT_DEADLINE_MILLIS))
+					.build();
+		}
+		
+		public static ProcessingBudgetBuilder builder() {
+			return new ProcessingBudgetBuilder();
+		}
+		
+		public int maxInputLength() {
+			return maxInputLength;
+		}
+		
+		/**
+		 * Cheap up-front checks (length, token count) followed by arming of the extraction deadline
+		 * @throws BudgetExceededException if the line is too long or has too many tokens
+		 */
+		public BudgetedInput admit(CharSequence line) {
+			if (line.length() > maxInputLength) {
+				throw new BudgetExceededException("input of " + line.length() + " chars exceeds limit of " + maxInputLength);
+			}
+			if (exceedsTokens(line)) {
+				throw new BudgetExceededException("input exceeds limit of " + maxTokens + " tokens");
+			}
+			return new BudgetedInput(line, 0, line.length(), System.nanoTime() + deadlineNanos);
+		}
+		
+		private boolean exceedsTokens(CharSequence line) {
+			int tokens = 0;
+			boolean inToken = false;
+			for (int i = 0; i < line.length(); i++) {
+				boolean whitespace = Character.isWhitespace(line.charAt(i));
+				if (!whitespace && !inToken && ++tokens > maxTokens) {
+					return true;
+				}
+				inToken = !whitespace;
+			}
+			return false;
+		}
+		
+		public final static class ProcessingBudgetBuilder {
+			
+			private int maxInputLength = DEFAULT_MAX_INPUT_LENGTH;
+			private int maxTokens = DEFAULT_MAX_TOKENS;
+			private long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEADLINE_MILLIS);
 			
-			Matcher transferMatcher = transferPattern.matcher(line);
-			Matcher displayMatcher = displayPattern.matcher(line);
+			public ProcessingBudgetBuilder withMaxInputLength(int maxInputLength) {
+				this.maxInputLength = maxInputLength;
+				return this;
+			}
 			
-			boolean transfer = transferMatcher.find();
-			boolean display = displayMatcher.find();
+			public ProcessingBudgetBuilder withMaxTokens(int maxTokens) {
+				this.maxTokens = maxTokens;
+				return this;
+			}
 			
-			ParsingContext parsingContext = transfer?new TransferContext(line):display?new DisplayContext(line):emptyContext();
+			public ProcessingBudgetBuilder withDeadlineMillis(long millis) {
+				return withDeadlineNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+			}
+			
+			public ProcessingBudgetBuilder withDeadlineNanos(long nanos) {
+				this.deadlineNanos = nanos;
+				return this;
+			}
 			
-			System.out.println(parsingContext);
-			Result result = actionMatcher.matchFor(parsingContext);
-			System.out.println(result);
+			public ProcessingBudget build() {
+				return new ProcessingBudget(this);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "ProcessingBudget [maxInputLength=" + maxInputLength + ", maxTokens=" + maxTokens
+					+ ", deadlineNanos=" + deadlineNanos + "]";
+		}
+	}
+	
+	/**
+	 * Request text as seen by the extractors. Every 256 character reads the 
+	 * deadline is consulted, so even a runaway regex scan is cut short.
+	 * @author Simeon
+	 *
+	 */
+	public static final class BudgetedInput implements CharSequence {
+		
+		private static final int CHECK_MASK = 0xFF;
+		
+		private final CharSequence text;
+		private final int start;
+		private final int end;
+		private final long deadline;
+		private int reads;
+		
+		BudgetedInput(CharSequence text, int start, int end, long deadline) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+			this.deadline = deadline;
+		}
+		
+		@Override
+		public int length() {
+			return end - start;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			if ((++reads & CHECK_MASK) == 0) {
+				checkDeadline();
+			}
+			return text.charAt(start + index);
+		}
+		
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return new BudgetedInput(text, start + from, start + to, deadline);
+		}
+		
+		void checkDeadline() {
+			if (System.nanoTime() - deadline > 0) {
+				throw new BudgetExceededException("extraction deadline exceeded");
+			}
+		}
+		
+		/**
+		 * The underlying request text, not subject to the deadline
+		 */
+		@Override
+		public String toString() {
+			return start == 0 && end == text.length() ? text.toString() : text.subSequence(start, end).toString();
+		}
+	}
+	
+	/**
+	 * Signals that a request ran out of its {@link ProcessingBudget}
+	 * @author Simeon
+	 *
+	 */
+	public static final class BudgetExceededException extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public BudgetExceededException(String message) {
+			super(message, null, false, false);
+		}
+	}
+	
+	/**
+	 * Set of pattern matching utilities to generalize dispatch (based on a Java type, etc.)
+	 * @author Simeon
+	 *
+	 */
+	public interface _Pattern {
+	    boolean matches(Object value);
+	    Result apply(Object value);
+	}
+	
+	public static class ActionMatcher {
+	    private _Pattern[] patterns;
+	 
+	    public ActionMatcher(_Pattern... patterns) { this.patterns = patterns; }
+	 
+	    public Result matchFor(Object value) {
+	        for (_Pattern pattern : patterns)
+	            if (pattern.matches(value)) return pattern.apply(value);
+	 	        throw new IllegalArgumentException("Sorry, no match for " + value);
+	    }
+	}
+	
+	public static class ClassPattern<T> implements _Pattern {
+		 
+	    private Class<T> clazz;
+	 
+	    private Function<T, Result> function;
+	 
+	    public ClassPattern(Class<T> clazz, Function<T, Result> function) {
+	        this.clazz = clazz;
+	        this.function = function;
+	    }
+	 
+	    public boolean matches(Object value) {
+	        return clazz.isInstance(value);
+	    }
+	 
+	    @SuppressWarnings("unchecked")
+		public Result apply(Object value) {
+	        return function.apply((T) value);
+	    }
+	 
+	    public static <T> _Pattern inCaseOf(Class<T> clazz, Function<T, Result> function) {
+	        return new ClassPattern<T>(clazz, function);
+	    }
+	}
+	 
+	/**
+	 * Generalization for the user response
+	 * @author Simeon
+	 *
+	 */
+	public static interface Result {
+		
+		/**
+		 * What was answered, leaving out whatever differs between two runs of the same request such as times;
+		 * replays are compared by it
+		 */
+		default String summary() {
+			return getClass().getSimpleName();
+		}
+
+		static Result emptyContext() {
+			return NullResult.INSTANCE;
+		}
+		
+		static Result notUnderstood(String reason) {
+			return new NotUnderstoodResult(reason);
+		}
+		
+		static Result rateLimited() {
+			return RateLimitedResult.INSTANCE;
+		}
+		
+		static Result retryLater() {
+			return RetryLaterResult.INSTANCE;
+		}
+	}
+	
+	/**
+	 * Response to a {@link NullContext}; stateless, so one instance serves all
+	 */
+	public static final class NullResult implements Result{
+		
+		static final NullResult INSTANCE = new NullResult();
+		
+		private NullResult() {}
+	}
+	
+	/**
+	 * Response to a request turned away by {@link AdmissionControl} before being looked at
+	 * @author Simeon
+	 *
+	 */
+	public static final class RateLimitedResult implements Result{
+		
+		static final RateLimitedResult INSTANCE = new RateLimitedResult();
+		
+		private RateLimitedResult() {}
+		
+		@Override
+		public String toString() {
+			return "RateLimitedResult [Too many requests, please try again shortly]";
+		}
+	}
+	
+	/**
+	 * Response to a transfer whose idempotency key {@link TransferDedupeIndex} could not take at the moment:
+	 * the index is full for its window or the first submission of the key is still running
+	 * @author Simeon
+	 *
+	 */
+	public static final class RetryLaterResult implements Result{
+		
+		static final RetryLaterResult INSTANCE = new RetryLaterResult();
+		
+		private RetryLaterResult() {}
+		
+		@Override
+		public String toString() {
+			return "RetryLaterResult [This transfer cannot be processed right now, please try again shortly]";
+		}
+	}
+	
+	/**
+	 * Response to a {@link ClarificationContext}: a question back to the user
+	 * @author Simeon
+	 *
+	 */
+	public static final class ClarificationResult implements Result{
+		
+		private final ClarificationContext clarificationContext;
+		
+		ClarificationResult(ClarificationContext context) {
+			this.clarificationContext = context;
+		}
+		
+		public String getQuestion() {
+			return "Sorry, I am not sure what you would like to do. Did you want to " + clarificationContext.best.getDescription() 
+					+ " or to " + clarificationContext.runnerUp.getDescription() + "?";
+		}
+		
+		@Override
+		public String summary() {
+			return "ClarificationResult [" + clarificationContext.summary() + "]";
+		}
+		
+		@Override
+		public String toString() {
+			return "ClarificationResult [clarificationContext=" + clarificationContext + ", question=" + getQuestion() + "]";
 		}
 	}
 	
 	/**
-	 * Set of pattern matching utilities to generalize dispatch (based on a Java type, etc.)
+	 * Response to a request carrying several clauses, in the order they were asked
 	 * @author Simeon
 	 *
 	 */
-	public interface _Pattern {
-	    boolean matches(Object value);
-	    Result apply(Object value);
-	}
-	
-	public static class ActionMatcher {
-	    private _Pattern[] patterns;
-	 
-	    public ActionMatcher(_Pattern... patterns) { this.patterns = patterns; }
-	 
-	    public Result matchFor(Object value) {
-	        for (_Pattern pattern : patterns)
-	            if (pattern.matches(value)) return pattern.apply(value);
-	 	        throw new IllegalArgumentException("Sorry, no match for " + value);
-	    }
+	public static final class CompositeResult implements Result{
+		
+		private final List<Result> results;
+		
+		public CompositeResult(List<Result> results) {
+			this.results = results;
+		}
+		
+		public List<Result> getResults() {
+			return results;
+		}
+		
+		@Override
+		public String summary() {
+			StringBuilder summary = new StringBuilder("CompositeResult [");
+			for (int i = 0; i < results.size(); i++) {
+				summary.append(i == 0 ? "" : ", ").append(results.get(i).summary());
+			}
+			return summary.append(']').toString();
+		}
+		
+		@Override
+		public String toString() {
+			return "CompositeResult [results=" + results + "]";
+		}
 	}
 	
-	public static class ClassPattern<T> implements _Pattern {
-		 
-	    private Class<T> clazz;
-	 
-	    private Function<T, Result> function;
-	 
-	    public ClassPattern(Class<T> clazz, Function<T, Result> function) {
-	        this.clazz = clazz;
-	        this.function = function;
-	    }
-	 
-	    public boolean matches(Object value) {
-	        return clazz.isInstance(value);
-	    }
-	 
-	    @SuppressWarnings("unchecked")
-		public Result apply(Object value) {
-	        return function.apply((T) value);
-	    }
-	 
-	    public static <T> _Pattern inCaseOf(Class<T> clazz, Function<T, Result> function) {
-	        return new ClassPattern<T>(clazz, function);
-	    }
-	}
-	 
 	/**
-	 * Generalization for the user response
+	 * Response to a request that could not be understood within its {@link ProcessingBudget}
 	 * @author Simeon
 	 *
 	 */
-	public static interface Result {
-
-		static Result emptyContext() {
-			return new NullResult();
+	public static final class NotUnderstoodResult implements Result{
+		
+		private final String reason;
+		
+		public NotUnderstoodResult(String reason) {
+			this.reason = reason;
+		}
+		
+		public String getReason() {
+			return reason;
+		}
+		
+		@Override
+		public String summary() {
+			return "NotUnderstoodResult [" + reason + "]";
+		}
+		
+		@Override
+		public String toString() {
+			return "NotUnderstoodResult [Sorry, I could not understand your request: " + reason + "]";
 		}
 	}
-	
-	public static final class NullResult implements Result{}
 	/**
 	 * Response to a {@link TransferAction}
 	 * @author Simeon
@@ -279,6 +1452,7 @@ public class BankingAssistant {
 			private String destinationAcctNumber;
 			private String destinationAcctAmount;
 			private boolean isSuccess;
+			private String rejectedBy;
 			
 			TransferResultBuilder withTransferParsingContext(TransferContext context) {
 				this.transferParsingContext = context;
@@ -310,6 +1484,11 @@ public class BankingAssistant {
 				return this;
 			}
 			
+			TransferResultBuilder rejectedBy(Rule rule) {
+				this.rejectedBy = rule == null ? null : rule.name();
+				return this;
+			}
+			
 			public TransferResult build() {
 				TransferResult result = new TransferResult();
 				result.destinationAcctAmount = this.destinationAcctAmount;
@@ -318,6 +1497,7 @@ public class BankingAssistant {
 				result.sourceAcctAmount = this.sourceAcctAmount;
 				result.sourceAcctNumber = this.sourceAcctNumber;
 				result.transferParsingContext = this.transferParsingContext;
+				result.rejectedBy = this.rejectedBy;
 				return result;
 			}
 		}
@@ -328,17 +1508,35 @@ public class BankingAssistant {
 		private String destinationAcctNumber;
 		private String destinationAcctAmount;
 		private boolean isSuccess;
+		private String rejectedBy;
 		
 		public static TransferResultBuilder builder() {
 			return new TransferResultBuilder();
 		}
 		
+		public boolean isSuccess() {
+			return isSuccess;
+		}
+		
+		/**
+		 * @return name of the validation rule that refused the transfer, null if none did
+		 */
+		public String getRejectedBy() {
+			return rejectedBy;
+		}
+		
+		@Override
+		public String summary() {
+			return "TransferResult [isSuccess=" + isSuccess + ", rejectedBy=" + rejectedBy + ", source=" + sourceAcctNumber + " " + sourceAcctAmount 
+					+ ", destination=" + destinationAcctNumber + " " + destinationAcctAmount + "]";
+		}
+		
 		@Override
 		public String toString() {
 			return "TransferResult [transferParsingContext=" + transferParsingContext + ", sourceAcctNumber="
 					+ sourceAcctNumber + ", sourceAcctAmount=" + sourceAcctAmount + ", destinationAcctNumber="
 					+ destinationAcctNumber + ", destinationAcctAmount=" + destinationAcctAmount + ", isSuccess="
-					+ isSuccess + "]";
+					+ isSuccess + ", rejectedBy=" + rejectedBy + "]";
 		}
 		
 	}
@@ -358,6 +1556,9 @@ public static final class DisplayResult implements Result{
 			private boolean isSuccess;
 			private String targetAcctNumber;
 			private String targetAcctAmount;
+			private List<AccountBalance> accounts;
+			private List<AccountType> missingAccounts;
+			private String totalAmount;
 			
 			DisplayResultBuilder withDisplayParsingContext(DisplayContext context) {
 				this.displayParsingContext = context;
@@ -374,6 +1575,23 @@ public static final class DisplayResult implements Result{
 				return this;
 			}
 
+			DisplayResultBuilder withAccount(AccountType type, String acctNum, double amt) {
+				if (accounts == null) accounts = new ArrayList<>();
+				accounts.add(new AccountBalance(type, acctNum, Double.toString(amt)));
+				return this;
+			}
+			
+			DisplayResultBuilder withMissingAccount(AccountType type) {
+				if (missingAccounts == null) missingAccounts = new ArrayList<>();
+				missingAccounts.add(type);
+				return this;
+			}
+			
+			DisplayResultBuilder withTotalAmount(double amt) {
+				this.totalAmount = Double.toString(amt);
+				return this;
+			}
+
 			DisplayResultBuilder isSuccess(boolean result) {
 				this.isSuccess = result;
 				return this;
@@ -386,42 +1604,311 @@ public static final class DisplayResult implements Result{
 				result.targetAcctAmount = this.targetAcctAmount;
 				result.targetAcctNumber = this.targetAcctNumber;
 				result.displayParsingContext = this.displayParsingContext;
+				result.accounts = this.accounts;
+				result.missingAccounts = this.missingAccounts;
+				result.totalAmount = this.totalAmount;
 
 				return result;
 			}
 		}
 		
+		/**
+		 * One line of an all-accounts inquiry
+		 */
+		public static final class AccountBalance {
+			
+			private final AccountType type;
+			private final String acctNumber;
+			private final String acctAmount;
+			
+			AccountBalance(AccountType type, String acctNumber, String acctAmount) {
+				this.type = type;
+				this.acctNumber = acctNumber;
+				this.acctAmount = acctAmount;
+			}
+			
+			public AccountType getType() {
+				return type;
+			}
+			
+			public String getAcctNumber() {
+				return acctNumber;
+			}
+			
+			public String getAcctAmount() {
+				return acctAmount;
+			}
+			
+			@Override
+			public String toString() {
+				return type + " " + acctNumber + "=" + acctAmount;
+			}
+		}
+		
 		private DisplayContext displayParsingContext;
 		private String targetAcctNumber;
 		private String targetAcctAmount;
 		private boolean isSuccess;
+		private List<AccountBalance> accounts;
+		private List<AccountType> missingAccounts;
+		private String totalAmount;
 		
 		public static DisplayResultBuilder builder() {
 			return new DisplayResultBuilder();
 		}
 		
+		public boolean isSuccess() {
+			return isSuccess;
+		}
+		
+		/**
+		 * @return accounts answered by an all-accounts inquiry, empty for a single account
+		 */
+		public List<AccountBalance> getAccounts() {
+			return accounts == null ? Collections.emptyList() : Collections.unmodifiableList(accounts);
+		}
+		
+		/**
+		 * @return accounts of an all-accounts inquiry which could not be looked up in time
+		 */
+		public List<AccountType> getMissingAccounts() {
+			return missingAccounts == null ? Collections.emptyList() : Collections.unmodifiableList(missingAccounts);
+		}
+		
+		/**
+		 * @return sum of the accounts answered by an all-accounts inquiry, null for a single account
+		 */
+		public String getTotalAmount() {
+			return totalAmount;
+		}
+		
+		public boolean isPartial() {
+			return missingAccounts != null;
+		}
+		
+		@Override
+		public String summary() {
+			return "DisplayResult [isSuccess=" + isSuccess + (totalAmount != null 
+					? ", accounts=" + getAccounts() + ", totalAmount=" + totalAmount + ", missingAccounts=" + getMissingAccounts() 
+					: ", target=" + targetAcctNumber + " " + targetAcctAmount) + "]";
+		}
+		
 		@Override
 		public String toString() {
+			if (totalAmount != null) {
+				return "DisplayResult [displayParsingContext=" + displayParsingContext + ", accounts=" + getAccounts() 
+						+ ", totalAmount=" + totalAmount + ", missingAccounts=" + getMissingAccounts() + ", isSuccess=" + isSuccess + "]";
+			}
 			return "DisplayResult [displayParsingContext=" + displayParsingContext + ", targetAcctNumber="
 					+ targetAcctNumber + ", targetAcctAmount=" + targetAcctAmount + ", isSuccess=" + isSuccess + "]";
 		}
 		
 	}
 	
+	/**
+	 * Response to a {@link HistoryAction}: past transfers, newest first
+	 * @author Simeon
+	 *
+	 */
+	public static final class HistoryResult implements Result{
+		
+		private HistoryResult() {}
+		
+		public final static class HistoryResultBuilder{
+			
+			private HistoryContext historyParsingContext;
+			private final List<PastTransfer> transfers = new ArrayList<>();
+			private int latest = Integer.MAX_VALUE;
+			private boolean isSuccess;
+			
+			HistoryResultBuilder withHistoryParsingContext(HistoryContext context) {
+				this.historyParsingContext = context;
+				return this;
+			}
+			
+			HistoryResultBuilder withTransfer(AccountType account, long millis, String counterparty, double amt) {
+				transfers.add(new PastTransfer(account, millis, counterparty, Double.toString(amt)));
+				return this;
+			}
+			
+			/**
+			 * @param count transfers kept at most, the latest ones
+			 */
+			HistoryResultBuilder keepingLatest(int count) {
+				this.latest = count;
+				return this;
+			}
+			
+			HistoryResultBuilder isSuccess(boolean result) {
+				this.isSuccess = result;
+				return this;
+			}
+			
+			public HistoryResult build() {
+				HistoryResult result = new HistoryResult();
+				List<PastTransfer> newestFirst = new ArrayList<>(transfers);
+				newestFirst.sort((a, b) -> Long.compare(b.millis, a.millis));
+				
+				result.historyParsingContext = this.historyParsingContext;
+				result.transfers = newestFirst.subList(0, Math.min(latest, newestFirst.size()));
+				result.isSuccess = this.isSuccess;
+				return result;
+			}
+		}
+		
+		/**
+		 * One transfer seen from one account: the amount is negative when money left the account
+		 */
+		public static final class PastTransfer {
+			
+			private final AccountType account;
+			private final long millis;
+			private final String counterparty;
+			private final String amount;
+			
+			PastTransfer(AccountType account, long millis, String counterparty, String amount) {
+				this.account = account;
+				this.millis = millis;
+				this.counterparty = counterparty;
+				this.amount = amount;
+			}
+			
+			public AccountType getAccount() {
+				return account;
+			}
+			
+			public long getMillis() {
+				return millis;
+			}
+			
+			public String getCounterparty() {
+				return counterparty;
+			}
+			
+			public String getAmount() {
+				return amount;
+			}
+			
+			@Override
+			public String toString() {
+				return Instant.ofEpochMilli(millis) + " " + account + (amount.startsWith("-") ? " to " : " from ") + counterparty + " " + amount;
+			}
+		}
+		
+		private HistoryContext historyParsingContext;
+		private List<PastTransfer> transfers;
+		private boolean isSuccess;
+		
+		public static HistoryResultBuilder builder() {
+			return new HistoryResultBuilder();
+		}
+		
+		public boolean isSuccess() {
+			return isSuccess;
+		}
+		
+		public List<PastTransfer> getTransfers() {
+			return Collections.unmodifiableList(transfers);
+		}
+		
+		@Override
+		public String summary() {
+			StringBuilder summary = new StringBuilder("HistoryResult [isSuccess=").append(isSuccess).append(", transfers=[");
+			for (int i = 0; i < transfers.size(); i++) {
+				PastTransfer transfer = transfers.get(i);
+				summary.append(i == 0 ? "" : ", ").append(transfer.account).append(' ').append(transfer.counterparty).append(' ').append(transfer.amount);
+			}
+			return summary.append("]]").toString();
+		}
+		
+		@Override
+		public String toString() {
+			return "HistoryResult [historyParsingContext=" + historyParsingContext + ", transfers=" + transfers 
+					+ ", isSuccess=" + isSuccess + "]";
+		}
+	}
+	
 /**
  * Encapsulates general information required for further action processing
  * @author Simeon
  *
  */
 	public interface ParsingContext {
+		
+		/**
+		 * What was understood, leaving out whatever differs between two runs of the same request such as times
+		 * or scores; replays are compared by it
+		 */
+		default String summary() {
+			return getClass().getSimpleName();
+		}
 
 		static ParsingContext emptyContext() {
-			return new NullContext();
+			return NullContext.INSTANCE;
 		}
 
 	}
 	
-	public static final class NullContext implements ParsingContext{}
+	/**
+	 * Context of a request asking for nothing the assistant can do; it holds no state, so one instance serves all
+	 */
+	public static final class NullContext implements ParsingContext{
+		
+		static final NullContext INSTANCE = new NullContext();
+		
+		private NullContext() {}
+	}
+	
+	/**
+	 * Request whose intent could not be told with enough confidence; carries the two likeliest candidates
+	 * @author Simeon
+	 *
+	 */
+	public static final class ClarificationContext implements ParsingContext{
+		
+		private final String request;
+		private final Intent best;
+		private final Intent runnerUp;
+		private final float bestScore;
+		private final float runnerUpScore;
+		
+		public ClarificationContext(final String request, final float[] probabilities) {
+			this.request = request;
+			Intent[] intents = Intent.all();
+			int first = 0, second = 1;
+			if (probabilities[second] > probabilities[first]) {
+				first = 1;
+				second = 0;
+			}
+			for (int i = 2; i < intents.length; i++) {
+				if (probabilities[i] > probabilities[first]) {
+					second = first;
+					first = i;
+				} else if (probabilities[i] > probabilities[second]) {
+					second = i;
+				}
+			}
+			this.best = intents[first];
+			this.runnerUp = intents[second];
+			this.bestScore = probabilities[first];
+			this.runnerUpScore = probabilities[second];
+		}
+		
+		Result clarify() {
+			return new ClarificationResult(this);
+		}
+		
+		@Override
+		public String summary() {
+			return "ClarificationContext [best=" + best + ", runnerUp=" + runnerUp + "]";
+		}
+		
+		@Override
+		public String toString() {
+			return "ClarificationContext [request=" + request + ", best=" + best + "(" + bestScore + "), runnerUp=" 
+					+ runnerUp + "(" + runnerUpScore + ")]";
+		}
+	}
 	
 	/**
 	 * Encapsulates data needed for execution of a {@link TransferAction}
@@ -430,63 +1917,40 @@ public static final class DisplayResult implements Result{
 	 */
 	public static final class TransferContext implements ParsingContext{
 		
+		private final long userId;
+		private final long idempotencyKey;
 		private final String request;
 		private final String source;
 		private final String destination;
-		private final String amount;
+		/** in minor units, or {@link AmountScanner#NO_AMOUNT} */
+		private final long amount;
 		
 		@Override
 		public String toString() {
 			return "TransferContext [request=" + request + ", source=" + source + ", destination=" + destination
-					+ ", amount=" + amount + "]";
+					+ ", amount=" + AmountScanner.toDollars(amount) + "]";
 		}
 
 		public TransferContext(final String line) {
-			this.request = line;
-			this.source = parseSource();
-			this.destination = parseDesination();
-			this.amount = parseAmount();
+			this(Grammar.defaults(), ActionController.DEFAULT_USER_ID, TransferDedupeIndex.NO_KEY, ProcessingBudget.defaultBudget().admit(line));
 		}
 		
-		private String parseSource() {
-			String result = "";
-			Pattern sourcePattern = Pattern.compile("(?<=from my\\s)(checking|savings|CD)|(?<=from\\s)(checking|savings|CD)");
-			Matcher sourceMatcher = sourcePattern.matcher(this.request);
-			while (sourceMatcher.find()) {
-				
-				for (int i = 1; i <= sourceMatcher.groupCount(); i++) {
-					String grp = sourceMatcher.group(i);
-					if (grp != null)
-						result = grp;
-				}
-			}
-			
-			return result;
-
+		TransferContext(final Grammar grammar, final long userId, final long idempotencyKey, final BudgetedInput input) {
+			this.userId = userId;
+			this.idempotencyKey = idempotencyKey;
+			this.request = input.toString();
+			this.source = grammar.source(input);
+			this.destination = grammar.destination(input);
+			this.amount = grammar.amount(input);
 		}
-
-		private String parseDesination() {
-			String result = "";
-			Pattern destinationPattern = Pattern.compile("(?<=to my\\s)(checking|savings|CD)|(?<=to\\s)(checking|savings|CD)");
-			Matcher destinationMatcher = destinationPattern.matcher(this.request);
-			while (destinationMatcher.find()) {
-				
-				for (int i = 1; i <= destinationMatcher.groupCount(); i++) {
-					String grp = destinationMatcher.group(i);
-					if (grp != null)
-						result = grp;
-				}
-			}
-			
-			return result;
+		
+		long amountInMinorUnits() {
+			return amount;
 		}
-
-		private String parseAmount() {
-			Pattern amountPattern = Pattern.compile(".?([$]?)(\\d+){1}( dollars)?.?");
-			Matcher amountMatcher = amountPattern.matcher(this.request);
-			amountMatcher.find();
-			return amountMatcher.group(2);
-			
+		
+		@Override
+		public String summary() {
+			return "TransferContext [source=" + source + ", destination=" + destination + ", amount=" + AmountScanner.toDollars(amount) + "]";
 		}
 
 	}
@@ -498,29 +1962,124 @@ public static final class DisplayResult implements Result{
 	 */
 public static final class DisplayContext implements ParsingContext{
 		
+		private final long userId;
 		private final String request;
 		private final String target;
 
 		
+		/**
+		 * Whether the request names no account in particular, i.e. 'what are my balances?'
+		 */
+		public boolean isAllAccounts() {
+			return target == null;
+		}
+		
 		@Override
 		public String toString() {
-			return "TransferContext [request=" + request + ", target=" + target + "]";
+			return "TransferContext [request=" + request + ", target=" + (target == null ? "all accounts" : target) + "]";
 		}
 
 		public DisplayContext(final String line) {
-			this.request = line;
-			this.target = parseTarget();
+			this(Grammar.defaults(), ActionController.DEFAULT_USER_ID, ProcessingBudget.defaultBudget().admit(line));
+		}
+		
+		DisplayContext(final Grammar grammar, final long userId, final BudgetedInput input) {
+			this.userId = userId;
+			this.request = input.toString();
+			this.target = grammar.target(input);
 			
 		}
 		
-		private String parseTarget() {
-			Pattern targetPattern = Pattern.compile(".?([cC]hecking|[sS]avings|[cC][dD]).?");
-			Matcher targetMatcher = targetPattern.matcher(this.request);
-			targetMatcher.find();
-			return targetMatcher.group(1);
+		@Override
+		public String summary() {
+			return "DisplayContext [target=" + (target == null ? "all accounts" : target) + "]";
 		}
 
 
 	}
 	
+	/**
+	 * Encapsulates data needed for execution of a {@link HistoryAction}: the account (all of them when
+	 * none is named), and either how many of the latest transfers or which period to show
+	 * @author Simeon
+	 *
+	 */
+	public static final class HistoryContext implements ParsingContext{
+		
+		/** Transfers shown when the request does not say how many */
+		public static final int DEFAULT_COUNT = 5;
+		
+		private static final long MILLIS_PER_DAY = 86_400_000L;
+		private static final Pattern PERIOD = Pattern.compile("\\b(today|yesterday|(?:this|last|past) week|(?:last|past) (\\w+) days)\\b", 
+				Pattern.CASE_INSENSITIVE);
+		
+		private final long userId;
+		private final String request;
+		private final String target;
+		private final int count;
+		private final boolean period;
+		/** as named in the request, i.e. 'yesterday', null for the latest transfers */
+		private final String periodName;
+		private final long fromMillis;
+		private final long toMillis;
+		
+		/**
+		 * Whether the request asks for a period, i.e. 'what did I transfer yesterday?', rather than for the latest transfers
+		 */
+		public boolean isPeriod() {
+			return period;
+		}
+		
+		@Override
+		public String toString() {
+			return "HistoryContext [request=" + request + ", target=" + (target == null ? "all accounts" : target) 
+					+ (period ? ", from=" + Instant.ofEpochMilli(fromMillis) + (toMillis == Long.MAX_VALUE ? "" : ", to=" + Instant.ofEpochMilli(toMillis)) 
+							: ", last=" + count) + "]";
+		}
+		
+		@Override
+		public String summary() {
+			return "HistoryContext [target=" + (target == null ? "all accounts" : target) + (period ? ", period=" + periodName : ", last=" + count) + "]";
+		}
+		
+		public HistoryContext(final String line) {
+			this(Grammar.defaults(), ActionController.DEFAULT_USER_ID, ProcessingBudget.defaultBudget().admit(line));
+		}
+		
+		HistoryContext(final Grammar grammar, final long userId, final BudgetedInput input) {
+			this.userId = userId;
+			this.request = input.toString();
+			this.target = grammar.target(input);
+			
+			Matcher matcher = PERIOD.matcher(input);
+			this.period = matcher.find();
+			if (!period) {
+				this.periodName = null;
+				this.count = grammar.count(input, DEFAULT_COUNT);
+				this.fromMillis = Long.MIN_VALUE;
+				this.toMillis = Long.MAX_VALUE;
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long today = now - now % MILLIS_PER_DAY;
+			String name = matcher.group(1).toLowerCase();
+			this.periodName = name;
+			this.count = Integer.MAX_VALUE;
+			if (name.equals("today")) {
+				this.fromMillis = today;
+				this.toMillis = Long.MAX_VALUE;
+			} else if (name.equals("yesterday")) {
+				this.fromMillis = today - MILLIS_PER_DAY;
+				this.toMillis = today;
+			} else if (name.endsWith("week")) {
+				this.fromMillis = now - 7 * MILLIS_PER_DAY;
+				this.toMillis = Long.MAX_VALUE;
+			} else {
+				this.fromMillis = now - Math.min(grammar.count(matcher.group(2), 7), 366) * MILLIS_PER_DAY;
+				this.toMillis = Long.MAX_VALUE;
+			}
+		}
+		
+	}
+	
 }
@@ -0,0 +1,251 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.AccountType;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Intent;
+import com.excelsiorsoft.banking.assistant.IntentClassifier.Example;
+
+/**
+ * Compiled vocabulary of the assistant: how intents are worded, what the accounts are called and
+ * how amounts are written. Read from a properties file (see <code>grammar.properties</code> on the classpath
+ * for the keys) and compiled once into
+ * <li> an {@link IntentClassifier} learnt from the seed utterances plus the configured phrases
+ * <li> source, destination and target account patterns over every alias
+ * <li> an {@link AmountScanner} knowing the configured currency words
+ *
+ * A grammar never changes once compiled; {@link GrammarReloader} replaces it as a whole.
+ * @author Simeon
+ *
+ */
+public final class Grammar {
+
+	static final String DEFAULT_RESOURCE = "/grammar.properties";
+
+	private static volatile Grammar defaults;
+
+	private final IntentClassifier classifier;
+	private final Map<String, AccountType> aliases;
+	private final Pattern source;
+	private final Pattern destination;
+	private final Pattern target;
+	/** matchers of the patterns above, reset for every request instead of created */
+	private final ThreadLocal<Matcher> sourceMatcher;
+	private final ThreadLocal<Matcher> destinationMatcher;
+	private final ThreadLocal<Matcher> targetMatcher;
+	private final AmountScanner amounts;
+
+	private Grammar(IntentClassifier classifier, Map<String, AccountType> aliases, AmountScanner amounts) {
+		this.classifier = classifier;
+		this.aliases = aliases;
+		this.amounts = amounts;
+
+		List<String> names = new ArrayList<>(aliases.keySet());
+		// longest first, so that 'checking account' wins over 'checking'
+		names.sort((a, b) -> b.length() - a.length());
+		StringBuilder alternatives = new StringBuilder();
+		for (String name : names) {
+			alternatives.append(alternatives.length() == 0 ? "" : "|").append(Pattern.quote(name).replace(" ", "\\E\\s+\\Q"));
+		}
+		String account = "(" + alternatives + ")\\b";
+		this.source = Pattern.compile("\\bfrom\\s+(?:my\\s+)?" + account, Pattern.CASE_INSENSITIVE);
+		this.destination = Pattern.compile("\\b(?:to|into)\\s+(?:my\\s+)?" + account, Pattern.CASE_INSENSITIVE);
+		this.target = Pattern.compile("\\b" + account, Pattern.CASE_INSENSITIVE);
+		this.sourceMatcher = ThreadLocal.withInitial(() -> source.matcher(""));
+		this.destinationMatcher = ThreadLocal.withInitial(() -> destination.matcher(""));
+		this.targetMatcher = ThreadLocal.withInitial(() -> target.matcher(""));
+	}
+
+	/**
+	 * Grammar shipped on the classpath
+	 */
+	public static Grammar defaults() {
+		Grammar grammar = defaults;
+		if (grammar == null) {
+			try (InputStream in = Grammar.class.getResourceAsStream(DEFAULT_RESOURCE)) {
+				if (in == null) {
+					throw new IllegalStateException(DEFAULT_RESOURCE + " is missing from the classpath");
+				}
+				Properties config = new Properties();
+				config.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+				defaults = grammar = compile(config);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return grammar;
+	}
+
+	/**
+	 * @throws IOException if the file cannot be read or holds no settings at all
+	 */
+	public static Grammar load(Path file) throws IOException {
+		Properties config = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			config.load(reader);
+		}
+		if (config.isEmpty()) {
+			throw new IOException(file + " is empty");
+		}
+		return compile(config);
+	}
+
+	/**
+	 * Every account type is known by its name in addition to its aliases.
+	 * @throws IllegalArgumentException on an unknown intent or account type or a malformed currency word
+	 */
+	public static Grammar compile(Properties config) {
+		List<Example> examples = new ArrayList<>(IntentClassifier.SEED);
+		Map<String, AccountType> aliases = new HashMap<>();
+		AmountScanner amounts = AmountScanner.defaults();
+		float confidence = IntentClassifier.DEFAULT_CONFIDENCE;
+
+		// sorted, as the classifier learns differently from the same examples in another order
+		for (String key : new TreeSet<>(config.stringPropertyNames())) {
+			String value = config.getProperty(key).trim();
+			String[] parts = key.split("\\.");
+			if (key.equals("intent.confidence")) {
+				confidence = Float.parseFloat(value);
+			} else if (parts[0].equals("intent") && parts.length == 2) {
+				addExamples(examples, Intent.valueOf(parts[1].toUpperCase()), value.split(","));
+			} else if (parts[0].equals("intent") && parts.length == 3 && parts[2].equals("examples")) {
+				addExamples(examples, Intent.valueOf(parts[1].toUpperCase()), value.split("\\|"));
+			} else if (parts[0].equals("account") && parts.length == 2) {
+				AccountType type = AccountType.valueOf(parts[1].toUpperCase());
+				for (String alias : value.split(",")) {
+					if (!alias.trim().isEmpty()) {
+						aliases.put(alias.trim().toLowerCase(), type);
+					}
+				}
+			} else if (key.equals("amount.currency")) {
+				List<String> currencies = new ArrayList<>();
+				for (String currency : value.split(",")) {
+					if (!currency.trim().isEmpty()) {
+						currencies.add(currency.trim());
+					}
+				}
+				amounts = AmountScanner.withCurrencies(currencies.toArray(new String[0]));
+			}
+		}
+
+		for (AccountType type : AccountType.values()) {
+			aliases.putIfAbsent(type.name().toLowerCase(), type);
+		}
+		return new Grammar(IntentClassifier.train(examples, confidence),
+				Collections.unmodifiableMap(aliases), amounts);
+	}
+
+	private static void addExamples(List<Example> examples, Intent intent, String[] utterances) {
+		for (String utterance : utterances) {
+			if (!utterance.trim().isEmpty()) {
+				examples.add(new Example(intent, utterance.trim()));
+			}
+		}
+	}
+
+	public IntentClassifier classifier() {
+		return classifier;
+	}
+
+	/**
+	 * @return account type an alias (in any case) stands for, or null
+	 */
+	public AccountType accountOf(String alias) {
+		return aliases.get(alias.toLowerCase());
+	}
+
+	/**
+	 * @return last account named after 'from', or an empty string
+	 */
+	String source(CharSequence input) {
+		return last(sourceMatcher.get().reset(input));
+	}
+
+	/**
+	 * @return last account named after 'to' or 'into', or an empty string
+	 */
+	String destination(CharSequence input) {
+		return last(destinationMatcher.get().reset(input));
+	}
+
+	/**
+	 * @return first account named anywhere, or null
+	 */
+	String target(CharSequence input) {
+		Matcher matcher = targetMatcher.get().reset(input);
+		String target = matcher.find() ? matcher.group(1) : null;
+		matcher.reset("");
+		return target == null ? null : canonical(target);
+	}
+
+	/**
+	 * @return amount in minor units, or {@link AmountScanner#NO_AMOUNT}
+	 */
+	long amount(CharSequence input) {
+		return amounts.scan(input);
+	}
+
+	/**
+	 * @return whole number written in the input, e.g. how many transfers to show, or <code>otherwise</code>
+	 */
+	int count(CharSequence input, int otherwise) {
+		long minorUnits = amounts.scan(input);
+		return minorUnits == AmountScanner.NO_AMOUNT || minorUnits < 100 ? otherwise : (int) Math.min(Integer.MAX_VALUE, minorUnits / 100);
+	}
+
+	private String last(Matcher matcher) {
+		String result = "";
+		while (matcher.find()) {
+			result = matcher.group(1);
+		}
+		// the matcher is kept per thread, it must not hold on to the input
+		matcher.reset("");
+		return result.isEmpty() ? result : canonical(result);
+	}
+
+	/**
+	 * An alias as written when it is the name of the account type, the name of the type otherwise
+	 */
+	private String canonical(String alias) {
+		AccountType type = accountOf(singleSpaced(alias));
+		if (type == null || type.name().equalsIgnoreCase(alias)) {
+			return alias;
+		}
+		return type.name().toLowerCase();
+	}
+
+	/**
+	 * The alias with every run of blanks turned into one space; the alias itself when it has none
+	 */
+	private static String singleSpaced(String alias) {
+		for (int i = 0; i < alias.length(); i++) {
+			char c = alias.charAt(i);
+			boolean blank = Character.isWhitespace(c);
+			if (blank && (c != ' ' || (i + 1 < alias.length() && Character.isWhitespace(alias.charAt(i + 1))))) {
+				return alias.replaceAll("\\s+", " ");
+			}
+		}
+		return alias;
+	}
+
+	@Override
+	public String toString() {
+		return "Grammar [aliases=" + aliases.size() + ", amounts=" + amounts + ", classifier=" + classifier + "]";
+	}
+}
@@ -0,0 +1,149 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the {@link Grammar} in use and, when watching a file, replaces it whenever the file changes.
+ *
+ * <li> a background thread waits for changes of the file, compiles a new grammar off the request path
+ * and publishes it with a single volatile write
+ * <li> requests read {@link #current()} once and keep that snapshot until they are answered,
+ * so a reload neither blocks nor alters a request in flight
+ * <li> changes are let to settle for {@link #SETTLE_MILLIS} before the file is read, so that an editor
+ * or a copy still writing it is not caught halfway
+ * <li> a file which is empty or fails to load or compile leaves the previous grammar in place
+ * @author Simeon
+ *
+ */
+public final class GrammarReloader implements Closeable {
+
+	static final long SETTLE_MILLIS = 50;
+
+	private final Path file;
+	private final WatchService watcher;
+	private final Thread thread;
+	private final AtomicLong reloads = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile Grammar current;
+
+	private GrammarReloader(Grammar initial, Path file, WatchService watcher) {
+		this.current = initial;
+		this.file = file;
+		this.watcher = watcher;
+		this.thread = watcher == null ? null : new Thread(this::watch, "grammar-reloader");
+	}
+
+	/**
+	 * Always the same grammar
+	 */
+	public static GrammarReloader fixed(Grammar grammar) {
+		return new GrammarReloader(grammar, null, null);
+	}
+
+	/**
+	 * Loads the file, which is read again only on {@link #reload()}
+	 * @throws IOException if the file cannot be loaded
+	 */
+	public static GrammarReloader onDemand(Path file) throws IOException {
+		Path absolute = file.toAbsolutePath();
+		return new GrammarReloader(Grammar.load(absolute), absolute, null);
+	}
+
+	/**
+	 * Loads the file and keeps reloading it as it changes
+	 * @throws IOException if the file cannot be loaded initially
+	 */
+	public static GrammarReloader watch(Path file) throws IOException {
+		Path absolute = file.toAbsolutePath();
+		Grammar initial = Grammar.load(absolute);
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		absolute.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		GrammarReloader reloader = new GrammarReloader(initial, absolute, watcher);
+		reloader.thread.setDaemon(true);
+		reloader.thread.start();
+		return reloader;
+	}
+
+	public Grammar current() {
+		return current;
+	}
+
+	/**
+	 * @return grammars published since the start
+	 */
+	public long reloads() {
+		return reloads.get();
+	}
+
+	/**
+	 * @return changes of the file which could not be loaded
+	 */
+	public long failures() {
+		return failures.get();
+	}
+
+	/**
+	 * Compiles the file and publishes it
+	 * @return whether the file could be loaded
+	 */
+	public boolean reload() {
+		try {
+			current = Grammar.load(file);
+			reloads.incrementAndGet();
+			return true;
+		} catch (IOException | RuntimeException e) {
+			failures.incrementAndGet();
+			System.err.println("Keeping the current grammar, " + file + " could not be loaded: " + e);
+			return false;
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				boolean changed = changed(watcher.take());
+				// let the writer finish: keep collecting events until the file has been quiet for a while
+				for (WatchKey key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS); key != null; 
+						key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) {
+					changed |= changed(key);
+				}
+				if (changed) {
+					reload();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	private boolean changed(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context());
+		}
+		key.reset();
+		return changed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (watcher != null) {
+			watcher.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "GrammarReloader [file=" + file + ", reloads=" + reloads + ", failures=" + failures + ", current=" + current + "]";
+	}
+}
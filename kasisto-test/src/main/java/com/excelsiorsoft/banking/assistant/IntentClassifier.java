@@ -0,0 +1,268 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Intent;
+
+/**
+ * Linear intent scorer over hashed sparse features.
+ *
+ * <li> the text is tokenized on the fly (letters and digits, lower-cased; numbers collapse to one token,
+ * '$' is a token of its own) and every unigram and bigram is hashed into one of {@link #BUCKETS} buckets
+ * <li> every {@link Intent} has a <code>float</code> weight per bucket, learnt by logistic regression
+ * from a seed set of labelled utterances
+ * <li> scoring sums the weights of the active buckets and turns the sums into probabilities;
+ * it works off thread-confined buffers, so classification does not allocate
+ *
+ * @author Simeon
+ *
+ */
+public final class IntentClassifier {
+
+	static final int BUCKETS = 1 << 14;
+	static final float DEFAULT_CONFIDENCE = 0.6f;
+
+	private static final int MAX_FEATURES = 1024;
+	private static final int EPOCHS = 30;
+	private static final float LEARNING_RATE = 0.3f;
+
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+	private static final int NUMBER = 0x4e554d42;
+
+	private static final Intent[] INTENTS = Intent.values();
+
+	/** utterances the default model is learnt from */
+	static final List<Example> SEED = Collections.unmodifiableList(Arrays.asList(
+			new Example(Intent.TRANSFER, "transfer $20 from checking to savings please"),
+			new Example(Intent.TRANSFER, "can you transfer from my CD 200 dollars to my checking, please?"),
+			new Example(Intent.TRANSFER, "send 100 dollars from savings to checking"),
+			new Example(Intent.TRANSFER, "move $50 from savings to checking"),
+			new Example(Intent.TRANSFER, "please move 30 from my checking account to my savings account"),
+			new Example(Intent.TRANSFER, "I want to transfer money to my savings"),
+			new Example(Intent.TRANSFER, "send money from checking to savings"),
+			new Example(Intent.TRANSFER, "wire 500 dollars from my savings to checking"),
+			new Example(Intent.TRANSFER, "put 40 dollars into savings from checking"),
+			new Example(Intent.TRANSFER, "transfer 75 to my CD"),
+			new Example(Intent.TRANSFER, "move money between my accounts"),
+			new Example(Intent.TRANSFER, "pay 20 dollars from checking into savings"),
+			new Example(Intent.DISPLAY, "what is the balance of my checking account?"),
+			new Example(Intent.DISPLAY, "savings account balance please."),
+			new Example(Intent.DISPLAY, "show my CD balance"),
+			new Example(Intent.DISPLAY, "tell me my CD balance"),
+			new Example(Intent.DISPLAY, "how much money do I have in savings"),
+			new Example(Intent.DISPLAY, "view my checking account"),
+			new Example(Intent.DISPLAY, "send me my balance"),
+			new Example(Intent.DISPLAY, "show me what I can transfer"),
+			new Example(Intent.DISPLAY, "how much can I transfer from checking"),
+			new Example(Intent.DISPLAY, "what's in my savings account"),
+			new Example(Intent.DISPLAY, "balance"),
+			new Example(Intent.DISPLAY, "how much is in my checking"),
+			new Example(Intent.DISPLAY, "can you show me my savings balance"),
+			new Example(Intent.DISPLAY, "what do I have available to send"),
+			new Example(Intent.HISTORY, "what were my last transfers from savings"),
+			new Example(Intent.HISTORY, "show my transfer history"),
+			new Example(Intent.HISTORY, "show my recent transfers"),
+			new Example(Intent.HISTORY, "list the last 5 transfers of my checking account"),
+			new Example(Intent.HISTORY, "what did I transfer yesterday"),
+			new Example(Intent.HISTORY, "which transfers did I make today"),
+			new Example(Intent.HISTORY, "history of my CD"),
+			new Example(Intent.HISTORY, "past transfers of my savings account"),
+			new Example(Intent.HISTORY, "my last ten transfers"),
+			new Example(Intent.HISTORY, "transfers in the last 7 days"),
+			new Example(Intent.NONE, "hello"),
+			new Example(Intent.NONE, "hi there"),
+			new Example(Intent.NONE, "thanks"),
+			new Example(Intent.NONE, "thank you very much"),
+			new Example(Intent.NONE, "please"),
+			new Example(Intent.NONE, "what can you do"),
+			new Example(Intent.NONE, "good morning"),
+			new Example(Intent.NONE, "bye"),
+			new Example(Intent.NONE, "who are you"),
+			new Example(Intent.NONE, "help")));
+
+	/**
+	 * Utterance labelled with the intent it expresses
+	 */
+	public static final class Example {
+
+		final Intent intent;
+		final String utterance;
+
+		public Example(Intent intent, String utterance) {
+			this.intent = intent;
+			this.utterance = utterance;
+		}
+
+		@Override
+		public String toString() {
+			return intent + ": " + utterance;
+		}
+	}
+
+	private final float[] weights;
+	private final float confidence;
+	private final ThreadLocal<int[]> features = ThreadLocal.withInitial(() -> new int[MAX_FEATURES]);
+
+	private IntentClassifier(float[] weights, float confidence) {
+		this.weights = weights;
+		this.confidence = confidence;
+	}
+
+	/**
+	 * Classifier learnt from the built-in seed utterances
+	 */
+	public static IntentClassifier defaultClassifier() {
+		return train(SEED, DEFAULT_CONFIDENCE);
+	}
+
+	/**
+	 * Learns weights from labelled utterances; the outcome depends on their order
+	 * @param confidence probability the best intent must reach to be acted upon
+	 */
+	public static IntentClassifier train(List<Example> examples, float confidence) {
+		float[] weights = new float[INTENTS.length * BUCKETS];
+		int[] features = new int[MAX_FEATURES];
+		float[] probabilities = new float[INTENTS.length];
+		int[] order = new int[examples.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Random random = new Random(42);
+
+		for (int epoch = 0; epoch < EPOCHS; epoch++) {
+			shuffle(order, random);
+			for (int i : order) {
+				Example example = examples.get(i);
+				int label = example.intent.ordinal();
+				int count = extract(example.utterance, features);
+				score(weights, features, count, probabilities);
+				for (int c = 0; c < INTENTS.length; c++) {
+					float gradient = LEARNING_RATE * ((c == label ? 1 : 0) - probabilities[c]);
+					for (int f = 0; f < count; f++) {
+						weights[c * BUCKETS + features[f]] += gradient;
+					}
+				}
+			}
+		}
+		return new IntentClassifier(weights, confidence);
+	}
+
+	/**
+	 * Scores the text against every intent
+	 * @param probabilities filled with a probability per {@link Intent#ordinal()}
+	 * @return the most probable intent
+	 */
+	public Intent classify(CharSequence text, float[] probabilities) {
+		int[] buffer = features.get();
+		score(weights, buffer, extract(text, buffer), probabilities);
+		int best = 0;
+		for (int c = 1; c < INTENTS.length; c++) {
+			if (probabilities[c] > probabilities[best]) best = c;
+		}
+		return INTENTS[best];
+	}
+
+	/**
+	 * @return whether the probability of the best intent reaches the confidence threshold
+	 */
+	public boolean isConfident(Intent best, float[] probabilities) {
+		return probabilities[best.ordinal()] >= confidence;
+	}
+
+	/**
+	 * Buffer sized for {@link #classify}
+	 */
+	public static float[] newProbabilities() {
+		return new float[INTENTS.length];
+	}
+
+	private static void score(float[] weights, int[] features, int count, float[] probabilities) {
+		float max = Float.NEGATIVE_INFINITY;
+		for (int c = 0; c < INTENTS.length; c++) {
+			float sum = 0;
+			int base = c * BUCKETS;
+			for (int f = 0; f < count; f++) {
+				sum += weights[base + features[f]];
+			}
+			probabilities[c] = sum;
+			max = Math.max(max, sum);
+		}
+		float total = 0;
+		for (int c = 0; c < INTENTS.length; c++) {
+			probabilities[c] = (float) Math.exp(probabilities[c] - max);
+			total += probabilities[c];
+		}
+		for (int c = 0; c < INTENTS.length; c++) {
+			probabilities[c] /= total;
+		}
+	}
+
+	/**
+	 * Hashes every unigram and bigram of the text into buckets. There is deliberately no bias feature:
+	 * text made only of unknown words scores evenly and ends up asking for clarification.
+	 * @return number of features written
+	 */
+	static int extract(CharSequence text, int[] features) {
+		int count = 0;
+
+		int previous = 0;
+		boolean hasPrevious = false;
+		int length = text.length();
+		for (int i = 0; i < length && count < features.length - 1;) {
+			char c = text.charAt(i);
+			int token;
+			if (c == '$') {
+				token = hash(FNV_OFFSET, '$');
+				i++;
+			} else if (Character.isDigit(c)) {
+				while (++i < length && (Character.isDigit(c = text.charAt(i)) || c == ',' || c == '.'));
+				token = NUMBER;
+			} else if (Character.isLetter(c)) {
+				token = FNV_OFFSET;
+				do {
+					token = hash(token, Character.toLowerCase(c));
+				} while (++i < length && (Character.isLetter(c = text.charAt(i)) || c == '\''));
+			} else {
+				i++;
+				continue;
+			}
+
+			features[count++] = bucket(token);
+			if (hasPrevious) {
+				features[count++] = bucket(previous * 31 + token);
+			}
+			previous = token;
+			hasPrevious = true;
+		}
+		return count;
+	}
+
+	private static int hash(int hash, char c) {
+		return (hash ^ c) * FNV_PRIME;
+	}
+
+	private static int bucket(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash & (BUCKETS - 1);
+	}
+
+	private static void shuffle(int[] order, Random random) {
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IntentClassifier [intents=" + INTENTS.length + ", buckets=" + BUCKETS + ", confidence=" + confidence + "]";
+	}
+}
@@ -0,0 +1,228 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a byte stream into lines, as a replacement for <code>Scanner.nextLine()</code> on large volumes of input.
+ *
+ * <li> bytes are read from the channel into one reusable direct buffer
+ * <li> UTF-8 is decoded incrementally into a reusable char buffer; a character split across two reads
+ * is completed on the next one, malformed input is replaced rather than failing the stream
+ * <li> a line is handed out as a {@link CharSequence} view over the char buffer, without copying.
+ * The view is only valid until the next call to {@link #nextLine()}; use <code>toString()</code> to keep it.
+ *
+ * Lines end with '\n' or "\r\n"; a last line without terminator is returned as well. A line longer than
+ * the maximum line length is cut to it and the rest of it, up to the next terminator, is discarded, so that
+ * the buffers stay bounded whatever the input.
+ * @author Simeon
+ *
+ */
+public final class LineReader implements Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+	static final int MIN_BUFFER_SIZE = 4;
+
+	private final ReadableByteChannel channel;
+	private final int maxLineLength;
+	private final ByteBuffer bytes;
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final LineView line = new LineView();
+
+	/** decoded characters, in write mode; [lineStart, position) is not handed out yet */
+	private CharBuffer chars;
+	private int lineStart;
+	private int scanned;
+	private boolean endOfInput;
+	/** whether the rest of a line that was cut is being skipped */
+	private boolean discarding;
+
+	public LineReader(ReadableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	public LineReader(ReadableByteChannel channel, int bufferSize) {
+		this(channel, bufferSize, DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * @param bufferSize bytes read at once; at least {@link #MIN_BUFFER_SIZE}, so that the longest
+	 * UTF-8 sequence always fits
+	 * @param maxLineLength chars a line is cut to
+	 */
+	public LineReader(ReadableByteChannel channel, int bufferSize, int maxLineLength) {
+		if (maxLineLength < 2) {
+			throw new IllegalArgumentException("Lines must be allowed at least 2 chars, not " + maxLineLength);
+		}
+		this.channel = channel;
+		this.maxLineLength = maxLineLength;
+		this.bytes = ByteBuffer.allocateDirect(Math.max(MIN_BUFFER_SIZE, bufferSize));
+		// UTF-8 never decodes to more chars than bytes, so a full byte buffer always fits
+		this.chars = CharBuffer.allocate(2 * bytes.capacity());
+	}
+
+	public static LineReader of(InputStream in) {
+		return new LineReader(Channels.newChannel(in));
+	}
+
+	public static LineReader of(InputStream in, int maxLineLength) {
+		return new LineReader(Channels.newChannel(in), DEFAULT_BUFFER_SIZE, maxLineLength);
+	}
+
+	/**
+	 * @return the next line without its terminator, or null at the end of input. The returned view
+	 * is overwritten by the next call.
+	 */
+	public CharSequence nextLine() throws IOException {
+		char[] array = chars.array();
+		while (true) {
+			for (int end = chars.position(); scanned < end; scanned++) {
+				if (array[scanned] == '\n') {
+					if (discarding) {
+						discarding = false;
+						lineStart = scanned + 1;
+						continue;
+					}
+					int lineEnd = scanned > lineStart && array[scanned - 1] == '\r' ? scanned - 1 : scanned;
+					line.set(array, lineStart, cut(array, lineStart, lineEnd));
+					lineStart = ++scanned;
+					return line;
+				}
+			}
+			if (discarding) {
+				lineStart = scanned;
+			} else if (scanned - lineStart >= maxLineLength) {
+				line.set(array, lineStart, cut(array, lineStart, scanned));
+				lineStart = scanned;
+				discarding = true;
+				return line;
+			}
+			if (endOfInput) {
+				if (lineStart < chars.position()) {
+					line.set(array, lineStart, chars.position());
+					lineStart = chars.position();
+					return line;
+				}
+				return null;
+			}
+			fill();
+			array = chars.array();
+		}
+	}
+
+	/**
+	 * @return end of the line cut to the maximum length, not splitting a surrogate pair
+	 */
+	private int cut(char[] array, int start, int end) {
+		if (end - start <= maxLineLength) {
+			return end;
+		}
+		int cut = start + maxLineLength;
+		return Character.isHighSurrogate(array[cut - 1]) ? cut - 1 : cut;
+	}
+
+	/**
+	 * @return chars the decoding buffer holds at most
+	 */
+	int charCapacity() {
+		return chars.capacity();
+	}
+
+	/**
+	 * Makes room for a full byte buffer of characters, reads once and decodes what was read
+	 */
+	private void fill() throws IOException {
+		compact();
+		if (chars.remaining() < bytes.capacity()) {
+			CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+			chars.flip();
+			larger.put(chars);
+			chars = larger;
+		}
+
+		int read = channel.read(bytes);
+		bytes.flip();
+		decoder.decode(bytes, chars, read < 0);
+		bytes.compact();
+		if (read < 0) {
+			decoder.flush(chars);
+			endOfInput = true;
+		}
+	}
+
+	/**
+	 * Moves the pending partial line to the start of the char buffer
+	 */
+	private void compact() {
+		if (lineStart == 0) {
+			return;
+		}
+		char[] array = chars.array();
+		int pending = chars.position() - lineStart;
+		System.arraycopy(array, lineStart, array, 0, pending);
+		chars.position(pending);
+		scanned -= lineStart;
+		lineStart = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Window over the decoded characters of one line
+	 */
+	static final class LineView implements CharSequence {
+
+		private char[] array;
+		private int start;
+		private int end;
+
+		void set(char[] array, int start, int end) {
+			this.array = array;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+			}
+			return array[start + index];
+		}
+
+		/**
+		 * A copy, since the view itself does not outlive the line
+		 */
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > end - start || from > to) {
+				throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + (end - start));
+			}
+			return new String(array, start + from, to - from);
+		}
+
+		@Override
+		public String toString() {
+			return new String(array, start, end - start);
+		}
+	}
+}
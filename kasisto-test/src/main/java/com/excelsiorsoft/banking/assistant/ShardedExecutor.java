@@ -0,0 +1,287 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Runs the requests of a user one after another, and the requests of different users in parallel.
+ *
+ * <li> a user id is hashed to one of a fixed number of shards
+ * <li> every shard is drained by exactly one thread, so everything submitted for a user runs
+ * in submission order and never concurrently with another request of the same user
+ * <li> producers hand tasks over through a bounded lock-free multi-producer single-consumer queue;
+ * an idle shard thread parks and is unparked by the producer which fills its queue
+ *
+ * Queue depth per shard and the imbalance of work between shards are exposed for monitoring.
+ * @author Simeon
+ *
+ */
+public final class ShardedExecutor implements AutoCloseable {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private final Shard[] shards;
+	private volatile boolean closed;
+
+	/**
+	 * @param queueCapacity tasks a shard can have waiting, rounded up to a power of two
+	 */
+	public ShardedExecutor(int shardCount, int queueCapacity) {
+		if (shardCount < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("At least one shard with room for one task is needed");
+		}
+		this.shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i, Integer.highestOneBit(Math.max(1, queueCapacity - 1)) << 1);
+		}
+		for (Shard shard : shards) {
+			shard.thread.start();
+		}
+	}
+
+	/**
+	 * A shard per available processor
+	 */
+	public static ShardedExecutor withDefaults() {
+		return new ShardedExecutor(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public int shardOf(long userId) {
+		return (int) ((BalanceStore.hash(userId) >>> 1) % shards.length);
+	}
+
+	/**
+	 * Queues the task on the shard of the user
+	 * @throws RejectedExecutionException when the shard queue is full or the executor is closed
+	 */
+	public void execute(long userId, Runnable task) {
+		if (closed) {
+			throw new RejectedExecutionException("Executor is closed");
+		}
+		Shard shard = shards[shardOf(userId)];
+		if (!shard.queue.offer(task)) {
+			shard.rejected.incrementAndGet();
+			throw new RejectedExecutionException("Queue of shard " + shard.index + " is full");
+		}
+		if (shard.parked) {
+			LockSupport.unpark(shard.thread);
+		}
+	}
+
+	/**
+	 * @return future completed on the shard thread of the user with the value of the task, or
+	 * failed with a {@link RejectedExecutionException} when the task could not be queued
+	 */
+	public <T> CompletableFuture<T> submit(long userId, Supplier<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			execute(userId, () -> {
+				try {
+					future.complete(task.get());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public int shardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @return tasks waiting on the shard, including one being picked up
+	 */
+	public int queueDepth(int shard) {
+		return shards[shard].queue.size();
+	}
+
+	/**
+	 * @return tasks the shard has run so far
+	 */
+	public long executed(int shard) {
+		return shards[shard].executed;
+	}
+
+	/**
+	 * @return tasks refused because the shard queue was full
+	 */
+	public long rejected(int shard) {
+		return shards[shard].rejected.get();
+	}
+
+	/**
+	 * Work of the busiest shard relative to the average shard, counting tasks run and waiting:
+	 * 1 when the load is spread evenly, {@link #shardCount()} when one shard does everything
+	 */
+	public double imbalance() {
+		long max = 0;
+		long total = 0;
+		for (Shard shard : shards) {
+			long load = shard.executed + shard.queue.size();
+			max = Math.max(max, load);
+			total += load;
+		}
+		return total == 0 ? 1 : (double) max * shards.length / total;
+	}
+
+	/**
+	 * Stops accepting tasks, lets the shards drain what is queued and waits for them to finish
+	 * @return whether every shard finished in time
+	 */
+	public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+		closed = true;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Shard shard : shards) {
+			LockSupport.unpark(shard.thread);
+		}
+		for (Shard shard : shards) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				return false;
+			}
+			shard.thread.join(remaining);
+			if (shard.thread.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		try {
+			close(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ShardedExecutor [shards=").append(shards.length)
+				.append(", imbalance=").append(String.format("%.2f", imbalance())).append(", depths=[");
+		for (int i = 0; i < shards.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(queueDepth(i));
+		}
+		return sb.append("]]").toString();
+	}
+
+	private final class Shard implements Runnable {
+
+		final int index;
+		final MpscQueue queue;
+		final Thread thread;
+		final AtomicLong rejected = new AtomicLong();
+		/** written by the shard thread only */
+		volatile long executed;
+		volatile boolean parked;
+
+		Shard(int index, int capacity) {
+			this.index = index;
+			this.queue = new MpscQueue(capacity);
+			this.thread = new Thread(this, "shard-" + index);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task = queue.poll();
+				if (task != null) {
+					try {
+						task.run();
+					} catch (Throwable e) {
+						thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+					}
+					executed++;
+					continue;
+				}
+				if (closed) {
+					if (queue.size() == 0) {
+						return;
+					}
+					continue;
+				}
+				// volatile write, then re-check: a producer either sees the flag or its task is seen here
+				parked = true;
+				if (queue.size() == 0 && !closed) {
+					LockSupport.park(this);
+				}
+				parked = false;
+			}
+		}
+	}
+
+	/**
+	 * Bounded array queue after Dmitry Vyukov: every slot carries a sequence telling whether it is
+	 * free for the producer of a given position or filled for the consumer of it. Producers race
+	 * on the tail with a CAS; the single consumer owns the head.
+	 */
+	static final class MpscQueue {
+
+		private final Runnable[] slots;
+		private final AtomicLongArray sequences;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong();
+		private volatile long head;
+
+		MpscQueue(int capacity) {
+			this.slots = new Runnable[capacity];
+			this.sequences = new AtomicLongArray(capacity);
+			this.mask = capacity - 1;
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, i);
+			}
+		}
+
+		/**
+		 * @return false when the queue is full
+		 */
+		boolean offer(Runnable task) {
+			while (true) {
+				long position = tail.get();
+				int slot = (int) position & mask;
+				long difference = sequences.get(slot) - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						slots[slot] = task;
+						sequences.set(slot, position + 1);
+						return true;
+					}
+				} else if (difference < 0) {
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * Consumer side only
+		 * @return next task or null when none is published yet
+		 */
+		Runnable poll() {
+			long position = head;
+			int slot = (int) position & mask;
+			if (sequences.get(slot) != position + 1) {
+				return null;
+			}
+			Runnable task = slots[slot];
+			slots[slot] = null;
+			sequences.lazySet(slot, position + slots.length);
+			head = position + 1;
+			return task;
+		}
+
+		int size() {
+			return (int) Math.max(0, tail.get() - head);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Captures raw utterances with their arrival time into a compact binary log, to be replayed
+ * against another build by {@link TrafficReplayer}.
+ *
+ * The log starts with {@link #MAGIC}, a format version and the wall-clock start time; every record is
+ * <li> arrival time, in microseconds since the previous record (varint)
+ * <li> user id (varint)
+ * <li> length of the utterance in bytes (varint) followed by the utterance in UTF-8, unpaired surrogates
+ * written as U+FFFD; utterances longer than {@link #MAX_UTTERANCE} bytes are cut to that length
+ *
+ * Records are encoded into a reusable direct buffer and written out only when it fills up,
+ * so recording costs little more than a memory copy per request.
+ * @author Simeon
+ *
+ */
+public class TrafficRecorder implements Closeable {
+
+	static final int MAGIC = 0x4b524543; // KREC
+	static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** longest encoding of a record header: three varints */
+	private static final int MAX_HEADER = 3 * 10;
+	/** longest utterance recorded, in bytes, so that any record fits the buffer */
+	static final int MAX_UTTERANCE = BUFFER_SIZE - MAX_HEADER;
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private long lastNanos;
+
+	private TrafficRecorder(FileChannel channel) {
+		this.channel = channel;
+		this.buffer = channel == null ? null : ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	/**
+	 * Starts a new log, replacing any existing file
+	 */
+	public static TrafficRecorder open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		TrafficRecorder recorder = new TrafficRecorder(channel);
+		recorder.buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+		recorder.lastNanos = System.nanoTime();
+		return recorder;
+	}
+
+	/**
+	 * Recorder which drops everything, for when recording is not asked for
+	 */
+	public static TrafficRecorder disabled() {
+		return new TrafficRecorder(null);
+	}
+
+	/**
+	 * Records an utterance, cut to {@link #MAX_UTTERANCE} bytes
+	 * @throws IOException if writing out the buffer fails
+	 */
+	public synchronized void record(long userId, CharSequence line) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		int end = utf8Prefix(line, MAX_UTTERANCE);
+		int length = utf8Length(line, end);
+		if (buffer.remaining() < MAX_HEADER + length) {
+			flush();
+		}
+
+		putVarLong(buffer, (now - lastNanos) / 1000);
+		putVarLong(buffer, userId);
+		putVarLong(buffer, length);
+		putUtf8(buffer, line, end);
+		lastNanos = now;
+	}
+
+	public synchronized void flush() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			flush();
+			channel.close();
+		}
+	}
+
+	static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	static int utf8Length(CharSequence line) {
+		return utf8Length(line, line.length());
+	}
+
+	/**
+	 * @return bytes of the UTF-8 encoding of the first <code>end</code> chars
+	 */
+	private static int utf8Length(CharSequence line, int end) {
+		int length = 0;
+		for (int i = 0; i < end; i++) {
+			length += utf8Width(line, i, end);
+			if (isPair(line, i, end)) {
+				i++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return number of leading chars encoded in at most <code>maxBytes</code>, never splitting a surrogate pair
+	 */
+	private static int utf8Prefix(CharSequence line, int maxBytes) {
+		int length = 0;
+		int i = 0;
+		while (i < line.length()) {
+			int width = utf8Width(line, i, line.length());
+			if (length + width > maxBytes) {
+				break;
+			}
+			length += width;
+			i += isPair(line, i, line.length()) ? 2 : 1;
+		}
+		return i;
+	}
+
+	private static int utf8Width(CharSequence line, int i, int end) {
+		char c = line.charAt(i);
+		return c < 0x80 ? 1 : c < 0x800 ? 2 : isPair(line, i, end) ? 4 : 3;
+	}
+
+	private static boolean isPair(CharSequence line, int i, int end) {
+		return Character.isHighSurrogate(line.charAt(i)) && i + 1 < end && Character.isLowSurrogate(line.charAt(i + 1));
+	}
+
+	private static void putUtf8(ByteBuffer buffer, CharSequence line, int end) {
+		for (int i = 0; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (isPair(line, i, end)) {
+				int codePoint = Character.toCodePoint(c, line.charAt(++i));
+				buffer.put((byte) (0xF0 | (codePoint >> 18)));
+				buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else {
+				if (Character.isSurrogate(c)) {
+					// unpaired, not encodable
+					c = REPLACEMENT;
+				}
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+}
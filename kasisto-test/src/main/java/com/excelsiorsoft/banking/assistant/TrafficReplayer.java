@@ -0,0 +1,332 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController.ActionControllerBuilder;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ParsingContext;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Result;
+
+/**
+ * Drives an {@link ActionController} with traffic captured by {@link TrafficRecorder}, at the original
+ * or an accelerated pace, and compares what two runs (typically of two builds) understood and how fast.
+ *
+ * <pre>
+ * java ... TrafficReplayer &lt;log&gt; &lt;report&gt; [speedup] [baseline report]
+ * </pre>
+ * A speedup of 0 replays as fast as possible.
+ * @author Simeon
+ *
+ */
+public final class TrafficReplayer {
+
+	private TrafficReplayer() {}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: TrafficReplayer <log> <report> [speedup] [baseline report]");
+			System.exit(2);
+		}
+		double speedup = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+
+		Traffic traffic = read(Paths.get(args[0]));
+		if (traffic.isTruncated()) {
+			System.out.println(args[0] + " ends in a truncated record at byte " + traffic.getTruncatedAt() + ", replaying the complete ones");
+		}
+		ReplayRun run = replay(traffic.getUtterances(), ActionController.builder().withVerbose(false), speedup);
+		run.write(Paths.get(args[1]));
+		System.out.println("Replayed " + run.entries.size() + " requests into " + args[1]);
+
+		if (args.length > 3) {
+			System.out.println(compare(ReplayRun.read(Paths.get(args[3])), run));
+		}
+	}
+
+	/**
+	 * One recorded request
+	 */
+	public static final class Utterance {
+
+		final long offsetMicros;
+		final long userId;
+		final String line;
+
+		Utterance(long offsetMicros, long userId, String line) {
+			this.offsetMicros = offsetMicros;
+			this.userId = userId;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * Utterances of a traffic log, and whether the log ended in the middle of a record, i.e. as the
+	 * recording process died
+	 */
+	public static final class Traffic {
+
+		final List<Utterance> utterances = new ArrayList<>();
+		int truncatedAt = -1;
+
+		public List<Utterance> getUtterances() {
+			return Collections.unmodifiableList(utterances);
+		}
+
+		public boolean isTruncated() {
+			return truncatedAt >= 0;
+		}
+
+		/**
+		 * @return offset of the incomplete last record in the log, -1 if there is none
+		 */
+		public int getTruncatedAt() {
+			return truncatedAt;
+		}
+	}
+
+	/**
+	 * Reads the complete records of a log; an incomplete last one is reported by {@link Traffic#isTruncated()}
+	 * @throws IOException if the file is not a traffic log
+	 */
+	public static Traffic read(Path log) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(log));
+		if (buffer.remaining() < 16 || buffer.getInt() != TrafficRecorder.MAGIC) {
+			throw new IOException(log + " is not a traffic log");
+		}
+		int version = buffer.getInt();
+		if (version != TrafficRecorder.VERSION) {
+			throw new IOException(log + " has unsupported version " + version);
+		}
+		buffer.getLong(); // wall-clock start
+
+		Traffic traffic = new Traffic();
+		long offset = 0;
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			try {
+				long delta = TrafficRecorder.getVarLong(buffer);
+				long userId = TrafficRecorder.getVarLong(buffer);
+				long length = TrafficRecorder.getVarLong(buffer);
+				if (length > buffer.remaining()) {
+					throw new BufferUnderflowException();
+				}
+				String line = new String(buffer.array(), buffer.position(), (int) length, StandardCharsets.UTF_8);
+				buffer.position(buffer.position() + (int) length);
+				offset += delta;
+				traffic.utterances.add(new Utterance(offset, userId, line));
+			} catch (BufferUnderflowException e) {
+				traffic.truncatedAt = start;
+				break;
+			}
+		}
+		return traffic;
+	}
+
+	/**
+	 * Replays the traffic, one request at a time, against a controller built from <code>controller</code>
+	 * @param speedup 1 for the original pace, 10 for ten times faster, 0 for as fast as possible
+	 */
+	public static ReplayRun replay(List<Utterance> traffic, ActionControllerBuilder controller, double speedup) {
+		Capture capture = new Capture();
+		ActionController replayed = controller.withStageListener(capture).build();
+
+		ReplayRun run = new ReplayRun();
+		long start = System.nanoTime();
+		for (Utterance utterance : traffic) {
+			if (speedup > 0) {
+				long due = start + (long) (utterance.offsetMicros * 1000 / speedup);
+				for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			replayed.produceAction(utterance.userId, utterance.line);
+			run.entries.add(new Entry(utterance.line, capture.parsed, capture.result, capture.parseNanos, capture.executeNanos));
+		}
+		return run;
+	}
+
+	private static final class Capture implements ActionController.StageListener {
+
+		String parsed;
+		String result;
+		long parseNanos;
+		long executeNanos;
+
+		@Override
+		public void onRequest(List<ParsingContext> contexts, Result result, long parseNanos, long executeNanos) {
+			StringBuilder parsed = new StringBuilder("[");
+			for (int i = 0; i < contexts.size(); i++) {
+				parsed.append(i == 0 ? "" : ", ").append(contexts.get(i) == null ? null : contexts.get(i).summary());
+			}
+			this.parsed = parsed.append(']').toString();
+			this.result = result == null ? "null" : result.summary();
+			this.parseNanos = parseNanos;
+			this.executeNanos = executeNanos;
+		}
+	}
+
+	/**
+	 * What was understood and answered for one request, and how long each stage took
+	 */
+	public static final class Entry {
+
+		final String line;
+		final String parsed;
+		final String result;
+		final long parseNanos;
+		final long executeNanos;
+
+		Entry(String line, String parsed, String result, long parseNanos, long executeNanos) {
+			this.line = line;
+			this.parsed = parsed;
+			this.result = result;
+			this.parseNanos = parseNanos;
+			this.executeNanos = executeNanos;
+		}
+	}
+
+	/**
+	 * Outcome of a replay, which can be saved as a tab separated report and compared with a run of another build
+	 */
+	public static final class ReplayRun {
+
+		final List<Entry> entries = new ArrayList<>();
+
+		public List<Entry> getEntries() {
+			return Collections.unmodifiableList(entries);
+		}
+
+		public void write(Path report) throws IOException {
+			try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+				for (Entry entry : entries) {
+					writer.write(entry.parseNanos + "\t" + entry.executeNanos + "\t" + escape(entry.line) + "\t"
+							+ escape(entry.parsed) + "\t" + escape(entry.result));
+					writer.newLine();
+				}
+			}
+		}
+
+		public static ReplayRun read(Path report) throws IOException {
+			ReplayRun run = new ReplayRun();
+			try (BufferedReader reader = Files.newBufferedReader(report, StandardCharsets.UTF_8)) {
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					String[] fields = line.split("\t", -1);
+					if (fields.length != 5) {
+						throw new IOException("Malformed report line: " + line);
+					}
+					run.entries.add(new Entry(unescape(fields[2]), unescape(fields[3]), unescape(fields[4]),
+							Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+				}
+			}
+			return run;
+		}
+
+		private static String escape(String value) {
+			return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+		}
+
+		private static String unescape(String value) {
+			StringBuilder sb = new StringBuilder(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1 < value.length()) {
+					char next = value.charAt(++i);
+					sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+				} else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Compares two runs of the same traffic: requests understood or answered differently, by the 
+	 * {@link ParsingContext#summary() summaries} of what was understood and answered, and latency percentiles per stage
+	 */
+	public static ReplayDiff compare(ReplayRun baseline, ReplayRun candidate) {
+		ReplayDiff diff = new ReplayDiff();
+		int common = Math.min(baseline.entries.size(), candidate.entries.size());
+		for (int i = 0; i < common; i++) {
+			Entry before = baseline.entries.get(i);
+			Entry after = candidate.entries.get(i);
+			if (!before.parsed.equals(after.parsed) || !before.result.equals(after.result)) {
+				diff.changed.add(i);
+			}
+		}
+		diff.sizeMismatch = baseline.entries.size() != candidate.entries.size();
+		diff.baseline = baseline;
+		diff.candidate = candidate;
+		return diff;
+	}
+
+	public static final class ReplayDiff {
+
+		private static final double[] PERCENTILES = {50, 90, 99};
+
+		final List<Integer> changed = new ArrayList<>();
+		boolean sizeMismatch;
+		ReplayRun baseline;
+		ReplayRun candidate;
+
+		/**
+		 * @return positions of requests whose parsing or result differs between the runs
+		 */
+		public List<Integer> getChanged() {
+			return Collections.unmodifiableList(changed);
+		}
+
+		/**
+		 * @return latency of a stage ("parse" or "execute") at a percentile in the candidate relative to baseline, i.e. 1.1 for 10% slower
+		 */
+		public double latencyRatio(String stage, double percentile) {
+			return percentile(candidate, stage, percentile) / Math.max(1, percentile(baseline, stage, percentile));
+		}
+
+		private static double percentile(ReplayRun run, String stage, double percentile) {
+			long[] nanos = new long[run.entries.size()];
+			for (int i = 0; i < nanos.length; i++) {
+				Entry entry = run.entries.get(i);
+				nanos[i] = "parse".equals(stage) ? entry.parseNanos : entry.executeNanos;
+			}
+			if (nanos.length == 0) {
+				return 0;
+			}
+			Arrays.sort(nanos);
+			return nanos[(int) Math.min(nanos.length - 1, Math.ceil(percentile / 100 * nanos.length) - 1)];
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("ReplayDiff [baseline=").append(baseline.entries.size())
+					.append(" requests, candidate=").append(candidate.entries.size()).append(" requests")
+					.append(sizeMismatch ? " (traffic differs)" : "").append(", changed=").append(changed.size()).append("]\n");
+			for (String stage : new String[] {"parse", "execute"}) {
+				for (double p : PERCENTILES) {
+					sb.append(String.format("\t%-7s p%-3.0f %10.0f ns -> %10.0f ns (%+.1f%%)%n", stage, p,
+							percentile(baseline, stage, p), percentile(candidate, stage, p), (latencyRatio(stage, p) - 1) * 100));
+				}
+			}
+			for (int i : changed) {
+				Entry before = baseline.entries.get(i);
+				Entry after = candidate.entries.get(i);
+				sb.append("\t#").append(i).append(" '").append(after.line).append("'\n")
+						.append("\t\t- ").append(before.parsed).append(" => ").append(before.result).append('\n')
+						.append("\t\t+ ").append(after.parsed).append(" => ").append(after.result).append('\n');
+			}
+			return sb.toString();
+		}
+	}
+}
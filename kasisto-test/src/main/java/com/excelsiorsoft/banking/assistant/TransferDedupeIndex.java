@@ -0,0 +1,445 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers idempotency keys of recently submitted transfers together with their outcome, so that
+ * a client retry is answered with the original result instead of moving money twice.
+ *
+ * <li> keys live in two generations, each covering one time window; a key is remembered for
+ * at least one and at most two windows. A generation holds at most the capacity per window,
+ * further keys are refused until the next rotation rather than dropping keys of the window.
+ * <li> every generation has a Bloom filter, which lets most new keys skip the lookup in the
+ * older generation, an exact open-addressing table of (key, state) pairs filled up to 3/4 and a 
+ * dense array of the balances reported by completed transfers. The state packs the status, the 
+ * rejection code and the position of the key's balances, so a key costs 16 bytes of balances plus 
+ * 21 to 43 bytes of table (depending on how the capacity rounds to a power of two) per generation.
+ * <li> claims are lock-free: a key's Bloom bits are set before the key itself, and a key inserted into 
+ * the current generation is checked again against the previous one, and against a newer one when a 
+ * rotation happened meanwhile. Of two entries of a key in adjacent generations, the older one wins 
+ * and the newer one is marked moved.
+ * <li> a retry waits for the first submission for a bounded time only
+ *
+ * @author Simeon
+ *
+ */
+public final class TransferDedupeIndex {
+
+	/** Key of a submission that does not ask for deduplication */
+	public static final long NO_KEY = 0;
+
+	private static final int STRIDE = 2;
+	private static final int KEY = 0;
+	private static final int STATE = 1;
+
+	private static final long EMPTY = 0;
+	/** inserted, not yet checked against the neighbouring generations */
+	private static final long CLAIMING = 1;
+	private static final long PENDING = 2;
+	private static final long SUCCEEDED = 3;
+	private static final long FAILED = 4;
+	private static final long ABANDONED = 5;
+	/** lost to an entry of the key in the older generation, as if it did not exist */
+	private static final long MOVED = 6;
+	/** a state is the status, the rejection code of a completed transfer and the position of its balances */
+	private static final int STATUS_BITS = 8;
+	private static final long STATUS_MASK = (1 << STATUS_BITS) - 1;
+	private static final int POSITION_SHIFT = 32;
+	private static final long REJECTION_MASK = (1L << (POSITION_SHIFT - STATUS_BITS)) - 1;
+
+	private static final int BLOOM_BITS_PER_KEY = 10;
+	private static final int BLOOM_HASHES = 3;
+
+	/** How long a retry waits for the first submission by default */
+	public static final long DEFAULT_AWAIT_MILLIS = 5_000;
+
+	/** outcomes of waiting for an entry */
+	private static final int COMPLETED = 0;
+	private static final int RECLAIMABLE = 1;
+	private static final int TIMED_OUT = 2;
+	private static final int FORGOTTEN = 3;
+
+	private final int capacity;
+	private final long windowMillis;
+	private final long awaitNanos;
+	private final LongSupplier clock;
+	private final AtomicReference<Generation[]> generations;
+
+	public TransferDedupeIndex(int capacityPerWindow, long window, TimeUnit unit) {
+		this(capacityPerWindow, unit.toMillis(window), DEFAULT_AWAIT_MILLIS, System::currentTimeMillis);
+	}
+
+	TransferDedupeIndex(int capacityPerWindow, long windowMillis, LongSupplier clock) {
+		this(capacityPerWindow, windowMillis, DEFAULT_AWAIT_MILLIS, clock);
+	}
+
+	TransferDedupeIndex(int capacityPerWindow, long windowMillis, long awaitMillis, LongSupplier clock) {
+		this.capacity = capacityPerWindow;
+		this.windowMillis = windowMillis;
+		this.awaitNanos = TimeUnit.MILLISECONDS.toNanos(awaitMillis);
+		this.clock = clock;
+		Generation first = new Generation(capacityPerWindow, clock.getAsLong());
+		this.generations = new AtomicReference<>(new Generation[] {first, Generation.NONE});
+	}
+
+	/**
+	 * Outcome of a remembered transfer
+	 */
+	public static final class Recorded {
+
+		private boolean success;
+		private boolean retryLater;
+		private int rejection;
+		private long sourceBalance;
+		private long destinationBalance;
+
+		/**
+		 * @return true if the key could not be taken, because the index is full for the current window or 
+		 * the first submission did not complete in time; nothing else is filled in then
+		 */
+		public boolean isRetryLater() {
+			return retryLater;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		/**
+		 * @return {@link TransferRuleEngine.Rule#code()} of the rule that rejected the transfer or {@link TransferRuleEngine#PASSED}
+		 */
+		public int getRejection() {
+			return rejection;
+		}
+
+		public long getSourceBalance() {
+			return sourceBalance;
+		}
+
+		public long getDestinationBalance() {
+			return destinationBalance;
+		}
+	}
+
+	/**
+	 * Claims a key for execution. If the key was seen before, waits until its first submission
+	 * completes and copies that outcome into <code>original</code>. 
+	 * @return true if the caller owns the key and must {@link #complete} or {@link #abandon} it, false if 
+	 * <code>original</code> holds the outcome or asks to {@link Recorded#isRetryLater() retry later}
+	 */
+	public boolean claim(long key, Recorded original) {
+		if (key == NO_KEY) {
+			throw new IllegalArgumentException("Cannot claim NO_KEY");
+		}
+		original.retryLater = false;
+		while (true) {
+			Generation[] current = rotateIfDue();
+			Generation owner = current[1];
+			int entry = owner.lookup(key);
+			if (entry < 0) {
+				owner = current[0];
+				entry = owner.insert(key);
+				if (entry == Generation.FULL) {
+					original.retryLater = true;
+					return false;
+				}
+				if (entry >= 0) {
+					if (settle(current, entry, key)) {
+						return true;
+					}
+					// lost to an entry of the key in another generation, wait for that one
+					continue;
+				}
+				entry = -entry - 1;
+			}
+
+			switch (await(owner, entry, original)) {
+			case COMPLETED:
+				return false;
+			case RECLAIMABLE:
+				if (owner.reclaim(entry)) {
+					return true;
+				}
+				break;
+			case TIMED_OUT:
+				original.retryLater = true;
+				return false;
+			default:
+				// moved, or rotated out while pending: its owner can no longer complete it, the key is claimed anew
+			}
+		}
+	}
+
+	/**
+	 * Decides whether a key just inserted into <code>seen[0]</code> is owned, now that it is visible there: 
+	 * a claim that missed it in an older generation sees it when checking back, and a claim of a newer 
+	 * generation that missed it was only possible after a rotation, which this claim then sees.
+	 * @return true if the entry is pending and owned, false if it was marked moved
+	 */
+	private boolean settle(Generation[] seen, int entry, long key) {
+		Generation mine = seen[0];
+		boolean lost = seen[1].lookup(key) >= 0;
+		Generation[] current = generations.get();
+		if (!lost && current[1] == mine) {
+			// an entry of the newer generation wins unless it moved for this one; it never waits for older ones
+			int newer = current[0].find(key);
+			lost = newer >= 0 && status(current[0].settled(newer)) != MOVED;
+		}
+		mine.settle(entry, lost ? MOVED : PENDING);
+		return !lost;
+	}
+
+	/**
+	 * Waits until the first submission of the entry's key completes, is abandoned or its generation 
+	 * is forgotten, but no longer than the await time
+	 */
+	private int await(Generation owner, int entry, Recorded original) {
+		long deadline = System.nanoTime() + awaitNanos;
+		long state;
+		while ((state = status(owner.state(entry))) == PENDING || state == CLAIMING || state == EMPTY) {
+			Generation[] current = generations.get();
+			if (current[0] != owner && current[1] != owner) {
+				return FORGOTTEN;
+			}
+			if (System.nanoTime() - deadline >= 0) {
+				return TIMED_OUT;
+			}
+			LockSupport.parkNanos(1_000);
+		}
+		if (state == MOVED) {
+			return FORGOTTEN;
+		}
+		if (state == ABANDONED) {
+			return RECLAIMABLE;
+		}
+		owner.copy(entry, original);
+		return COMPLETED;
+	}
+
+	/**
+	 * Records the outcome of a claimed key and releases any retries waiting for it
+	 */
+	public void complete(long key, boolean success, int rejection, long sourceBalance, long destinationBalance) {
+		for (Generation generation : generations.get()) {
+			int entry = generation.lookup(key);
+			if (entry >= 0) {
+				generation.publish(entry, success ? SUCCEEDED : FAILED, rejection, sourceBalance, destinationBalance);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gives up a claimed key without an outcome (i.e. execution failed), letting a retry run it
+	 */
+	public void abandon(long key) {
+		for (Generation generation : generations.get()) {
+			int entry = generation.lookup(key);
+			if (entry >= 0) {
+				generation.publish(entry, ABANDONED, 0, 0, 0);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the generations to claim in, rotated when the window of the current one is over
+	 */
+	private Generation[] rotateIfDue() {
+		while (true) {
+			Generation[] current = generations.get();
+			if (clock.getAsLong() - current[0].startMillis < windowMillis) {
+				return current;
+			}
+			Generation[] rotated = {new Generation(capacity, clock.getAsLong()), current[0]};
+			if (generations.compareAndSet(current, rotated)) {
+				return rotated;
+			}
+		}
+	}
+
+	private static long status(long state) {
+		return state & STATUS_MASK;
+	}
+
+	@Override
+	public String toString() {
+		Generation[] current = generations.get();
+		return "TransferDedupeIndex [capacityPerWindow=" + capacity + ", windowMillis=" + windowMillis
+				+ ", current=" + current[0].size.get() + ", previous=" + current[1].size.get() + "]";
+	}
+
+	private static final class Generation {
+
+		static final Generation NONE = new Generation(1, Long.MIN_VALUE);
+		static final int FULL = Integer.MIN_VALUE;
+
+		final long startMillis;
+		/** positions of balances handed out */
+		final AtomicInteger size = new AtomicInteger();
+		private final int limit;
+		private final AtomicLongArray entries;
+		private final int mask;
+		/** source and destination balance per position */
+		private final AtomicLongArray balances;
+		private final AtomicLongArray bloom;
+		private final long bloomBits;
+
+		Generation(int capacity, long startMillis) {
+			this.startMillis = startMillis;
+			this.limit = capacity;
+			// filled up to 3/4, so that probing stays short
+			int wanted = (int) Math.max(2, Math.min(1 << 30, ((long) capacity * 4 + 2) / 3));
+			int slots = Integer.highestOneBit(wanted - 1) << 1;
+			this.mask = slots - 1;
+			this.entries = new AtomicLongArray(slots * STRIDE);
+			this.balances = new AtomicLongArray(capacity * 2);
+			this.bloomBits = Math.max(64, (long) capacity * BLOOM_BITS_PER_KEY) & ~63L;
+			this.bloom = new AtomicLongArray((int) (bloomBits >>> 6));
+		}
+
+		boolean mightContain(long key) {
+			long hash = BalanceStore.hash(key);
+			int step = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				long bit = ((hash + (long) i * step) & Long.MAX_VALUE) % bloomBits;
+				if ((bloom.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void remember(long key) {
+			long hash = BalanceStore.hash(key);
+			int step = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				long bit = ((hash + (long) i * step) & Long.MAX_VALUE) % bloomBits;
+				int word = (int) (bit >>> 6);
+				long flag = 1L << bit;
+				long bits;
+				while (((bits = bloom.get(word)) & flag) == 0 && !bloom.compareAndSet(word, bits, bits | flag));
+			}
+		}
+
+		/**
+		 * Inserts a key in {@link #CLAIMING} state, its Bloom bits set before the key becomes visible
+		 * @return the entry claimed for a new key, <code>-(entry + 1)</code> of an existing one, or {@link #FULL}
+		 */
+		int insert(long key) {
+			int position = -1;
+			for (int slot = (int) BalanceStore.hash(key) & mask;; slot = (slot + 1) & mask) {
+				int entry = slot * STRIDE;
+				long existing = entries.get(entry + KEY);
+				if (existing == EMPTY) {
+					if (position < 0) {
+						position = reserve();
+						if (position < 0) {
+							return FULL;
+						}
+						remember(key);
+					}
+					if (entries.compareAndSet(entry + KEY, EMPTY, key)) {
+						entries.set(entry + STATE, (long) position << POSITION_SHIFT | CLAIMING);
+						return entry;
+					}
+					existing = entries.get(entry + KEY);
+				}
+				if (existing == key) {
+					if (position >= 0) {
+						// another claim of the key won the slot; the position is lost unless none was handed out since
+						size.compareAndSet(position + 1, position);
+					}
+					return -entry - 1;
+				}
+			}
+		}
+
+		/**
+		 * @return next free position for balances, or -1 when the generation is full
+		 */
+		private int reserve() {
+			while (true) {
+				int position = size.get();
+				if (position >= limit) {
+					return -1;
+				}
+				if (size.compareAndSet(position, position + 1)) {
+					return position;
+				}
+			}
+		}
+
+		int find(long key) {
+			for (int slot = (int) BalanceStore.hash(key) & mask;; slot = (slot + 1) & mask) {
+				int entry = slot * STRIDE;
+				long existing = entries.get(entry + KEY);
+				if (existing == EMPTY) {
+					return -1;
+				}
+				if (existing == key) {
+					return entry;
+				}
+			}
+		}
+
+		/**
+		 * @return entry of the key unless it moved, or -1
+		 */
+		int lookup(long key) {
+			if (!mightContain(key)) {
+				return -1;
+			}
+			int entry = find(key);
+			return entry < 0 || status(state(entry)) == MOVED ? -1 : entry;
+		}
+
+		/**
+		 * @return state of the entry once it is no longer being inserted or claimed
+		 */
+		long settled(int entry) {
+			long state;
+			while ((state = status(entries.get(entry + STATE))) == EMPTY || state == CLAIMING) {
+				LockSupport.parkNanos(1_000);
+			}
+			return entries.get(entry + STATE);
+		}
+
+		void settle(int entry, long status) {
+			entries.set(entry + STATE, entries.get(entry + STATE) & ~STATUS_MASK | status);
+		}
+
+		void publish(int entry, long status, int rejection, long sourceBalance, long destinationBalance) {
+			long position = entries.get(entry + STATE) >>> POSITION_SHIFT;
+			balances.lazySet((int) position * 2, sourceBalance);
+			balances.lazySet((int) position * 2 + 1, destinationBalance);
+			entries.set(entry + STATE, position << POSITION_SHIFT | (rejection & REJECTION_MASK) << STATUS_BITS | status);
+		}
+
+		long state(int entry) {
+			return entries.get(entry + STATE);
+		}
+
+		/**
+		 * Fills <code>original</code> in from a completed entry
+		 */
+		void copy(int entry, Recorded original) {
+			long state = entries.get(entry + STATE);
+			int position = (int) (state >>> POSITION_SHIFT);
+			original.success = status(state) == SUCCEEDED;
+			original.rejection = (int) (state >>> STATUS_BITS & REJECTION_MASK);
+			original.sourceBalance = balances.get(position * 2);
+			original.destinationBalance = balances.get(position * 2 + 1);
+		}
+
+		boolean reclaim(int entry) {
+			long state = entries.get(entry + STATE);
+			return status(state) == ABANDONED && entries.compareAndSet(entry + STATE, state, state & ~(REJECTION_MASK << STATUS_BITS | STATUS_MASK) | PENDING);
+		}
+	}
+}
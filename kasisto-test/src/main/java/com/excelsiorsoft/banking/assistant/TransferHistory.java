@@ -0,0 +1,333 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Recent transfers of every account, for answering 'what were my last transfers from savings?'.
+ *
+ * <li> every account owns a ring of a fixed number of records, each three <code>long</code>s in one
+ * shared array: time in milliseconds, the other account and the signed amount in minor units
+ * (negative when money left the account). The oldest record is overwritten once the ring is full,
+ * so memory per account is the same however busy the account is.
+ * <li> an open-addressing table of account ids maps an account to its ring, probing a bounded number of 
+ * slots from the account's home. When those are all taken, the one whose account has been idle the longest 
+ * is handed over to the new account, provided that account has been idle for the idle time; otherwise the 
+ * new account is not recorded.
+ * <li> records of an account are in time order, so the last N are read backwards from the head and
+ * a time range is found by binary search over the ring
+ * <li> writes and reads of an account are guarded by one of a fixed set of striped monitors
+ *
+ * @author Simeon
+ *
+ */
+public final class TransferHistory {
+
+	public static final int DEFAULT_ACCOUNTS = 1 << 10;
+	public static final int DEFAULT_PER_ACCOUNT = 32;
+	/** Time without transfers after which an account may lose its records to a new one, by default */
+	public static final long DEFAULT_IDLE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	private static final int STRIDE = 3;
+	private static final int TIME = 0;
+	private static final int COUNTERPARTY = 1;
+	private static final int AMOUNT = 2;
+
+	private static final long EMPTY = 0;
+	private static final int STRIPES = 64;
+	private static final int MAX_PROBES = 8;
+
+	/**
+	 * Receives records of a query, while the account is locked: it must not call back into the history
+	 */
+	public interface Visitor {
+		void visit(long millis, long counterpartyId, long amount);
+	}
+
+	private final int perAccount;
+	private final long idleMillis;
+	private final LongSupplier clock;
+	/** account id + 1 per slot, {@link #EMPTY} when unused */
+	private final AtomicLongArray accounts;
+	private final int mask;
+	/** records ever written per slot */
+	private final long[] written;
+	private final long[] records;
+	private final Object[] stripes = new Object[STRIPES];
+	/** accounts take slots over one at a time, so that one account cannot end up in two */
+	private final Object takeover = new Object();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	public TransferHistory() {
+		this(DEFAULT_ACCOUNTS, DEFAULT_PER_ACCOUNT);
+	}
+
+	/**
+	 * @param accounts accounts tracked at most, rounded up to a power of two
+	 * @param perAccount records kept per account
+	 */
+	public TransferHistory(int accounts, int perAccount) {
+		this(accounts, perAccount, DEFAULT_IDLE_MILLIS, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param idle time without transfers after which an account may lose its records to a new one
+	 */
+	public TransferHistory(int accounts, int perAccount, long idle, TimeUnit unit) {
+		this(accounts, perAccount, unit.toMillis(idle), System::currentTimeMillis);
+	}
+
+	TransferHistory(int accounts, int perAccount, LongSupplier clock) {
+		this(accounts, perAccount, DEFAULT_IDLE_MILLIS, clock);
+	}
+
+	TransferHistory(int accounts, int perAccount, long idleMillis, LongSupplier clock) {
+		int capacity = tableSize(accounts);
+		if (perAccount < 1 || (long) capacity * perAccount * STRIDE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Cannot keep " + perAccount + " records for each of " + capacity + " accounts");
+		}
+		this.perAccount = perAccount;
+		this.idleMillis = idleMillis;
+		this.clock = clock;
+		this.accounts = new AtomicLongArray(capacity);
+		this.mask = capacity - 1;
+		this.written = new long[capacity];
+		this.records = new long[capacity * perAccount * STRIDE];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * History with a slot for every account the store can hold, unless <code>kasisto.history.accounts</code> 
+	 * says otherwise, and <code>kasisto.history.perAccount</code> records per account, fewer if they would 
+	 * not fit in one array
+	 */
+	public static TransferHistory forStore(BalanceStore balances) {
+		int accounts = Integer.getInteger("kasisto.history.accounts", balances.capacity());
+		int perAccount = Integer.getInteger("kasisto.history.perAccount", DEFAULT_PER_ACCOUNT);
+		return new TransferHistory(accounts, (int) Math.min(perAccount, Integer.MAX_VALUE / STRIDE / tableSize(accounts)));
+	}
+
+	private static int tableSize(int accounts) {
+		return Integer.highestOneBit(Math.max(2, accounts - 1)) << 1;
+	}
+
+	/**
+	 * Records a completed transfer on both accounts, now
+	 */
+	public void record(long sourceId, long destinationId, long amount) {
+		long now = clock.getAsLong();
+		append(sourceId, now, destinationId, -amount);
+		append(destinationId, now, sourceId, amount);
+	}
+
+	private void append(long accountId, long millis, long counterpartyId, long amount) {
+		int slot = slotOf(accountId, millis);
+		if (slot < 0) {
+			dropped.increment();
+			return;
+		}
+		synchronized (stripes[slot & (STRIPES - 1)]) {
+			if (accounts.get(slot) != accountId + 1) {
+				// handed over meanwhile: the account was idle, its record is dropped like that of a full table
+				dropped.increment();
+				return;
+			}
+			long count = written[slot];
+			if (count > 0) {
+				// a clock going back must not break the time order of the ring
+				millis = Math.max(millis, records[offsetOf(slot, count - 1)]);
+			}
+			int offset = offsetOf(slot, count);
+			records[offset + TIME] = millis;
+			records[offset + COUNTERPARTY] = counterpartyId;
+			records[offset + AMOUNT] = amount;
+			written[slot] = count + 1;
+		}
+	}
+
+	/**
+	 * Visits the latest records of the account, newest first
+	 * @return records visited
+	 */
+	public int last(long accountId, int count, Visitor visitor) {
+		int slot = find(accountId);
+		if (slot < 0) {
+			return 0;
+		}
+		synchronized (stripes[slot & (STRIPES - 1)]) {
+			if (accounts.get(slot) != accountId + 1) {
+				return 0;
+			}
+			long head = written[slot];
+			int visited = (int) Math.min(Math.max(0, count), Math.min(head, perAccount));
+			for (int i = 1; i <= visited; i++) {
+				visit(offsetOf(slot, head - i), visitor);
+			}
+			return visited;
+		}
+	}
+
+	/**
+	 * Visits the records of the account from <code>fromMillis</code> (inclusive) to <code>toMillis</code>
+	 * (exclusive), oldest first
+	 * @return records visited
+	 */
+	public int between(long accountId, long fromMillis, long toMillis, Visitor visitor) {
+		int slot = find(accountId);
+		if (slot < 0) {
+			return 0;
+		}
+		synchronized (stripes[slot & (STRIPES - 1)]) {
+			if (accounts.get(slot) != accountId + 1) {
+				return 0;
+			}
+			long head = written[slot];
+			long oldest = head - Math.min(head, perAccount);
+			// first record at or after fromMillis
+			long low = oldest, high = head;
+			while (low < high) {
+				long middle = (low + high) >>> 1;
+				if (records[offsetOf(slot, middle) + TIME] < fromMillis) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			int visited = 0;
+			for (long i = low; i < head && records[offsetOf(slot, i) + TIME] < toMillis; i++, visited++) {
+				visit(offsetOf(slot, i), visitor);
+			}
+			return visited;
+		}
+	}
+
+	/**
+	 * @return records held for the account, at most {@link #perAccount()}
+	 */
+	public int size(long accountId) {
+		int slot = find(accountId);
+		if (slot < 0) {
+			return 0;
+		}
+		synchronized (stripes[slot & (STRIPES - 1)]) {
+			if (accounts.get(slot) != accountId + 1) {
+				return 0;
+			}
+			return (int) Math.min(written[slot], perAccount);
+		}
+	}
+
+	public int perAccount() {
+		return perAccount;
+	}
+
+	/**
+	 * @return records not kept because no slot near the account's home was free or idle
+	 */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return accounts whose records were dropped to make room for another account
+	 */
+	public long evicted() {
+		return evicted.sum();
+	}
+
+	private void visit(int offset, Visitor visitor) {
+		visitor.visit(records[offset + TIME], records[offset + COUNTERPARTY], records[offset + AMOUNT]);
+	}
+
+	/**
+	 * @param position number of the record among all ever written to the slot
+	 */
+	private int offsetOf(int slot, long position) {
+		return (slot * perAccount + (int) (position % perAccount)) * STRIDE;
+	}
+
+	/**
+	 * @return slot of the account, or -1
+	 */
+	private int find(long accountId) {
+		long key = accountId + 1;
+		int home = (int) BalanceStore.hash(accountId) & mask;
+		for (int probe = 0; probe < MAX_PROBES && probe <= mask; probe++) {
+			long occupant = accounts.get((home + probe) & mask);
+			if (occupant == key) {
+				return (home + probe) & mask;
+			}
+			if (occupant == EMPTY) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return slot of the account, claiming a free one or taking the idlest one over, or -1
+	 */
+	private int slotOf(long accountId, long now) {
+		long key = accountId + 1;
+		int home = (int) BalanceStore.hash(accountId) & mask;
+		for (int probe = 0; probe < MAX_PROBES && probe <= mask; probe++) {
+			int slot = (home + probe) & mask;
+			long occupant = accounts.get(slot);
+			if (occupant == key) {
+				return slot;
+			}
+			if (occupant == EMPTY && (accounts.compareAndSet(slot, EMPTY, key) || accounts.get(slot) == key)) {
+				return slot;
+			}
+		}
+		return takeOver(key, home, now);
+	}
+
+	/**
+	 * Hands the slot of the account idle for longest, if idle long enough, over to the account
+	 */
+	private int takeOver(long key, int home, long now) {
+		synchronized (takeover) {
+			int idlest = -1;
+			long idlestSince = Long.MAX_VALUE;
+			for (int probe = 0; probe < MAX_PROBES && probe <= mask; probe++) {
+				int slot = (home + probe) & mask;
+				if (accounts.get(slot) == key) {
+					return slot;
+				}
+				synchronized (stripes[slot & (STRIPES - 1)]) {
+					long count = written[slot];
+					// a slot just claimed has no records yet and is not idle
+					long since = count == 0 ? Long.MAX_VALUE : records[offsetOf(slot, count - 1) + TIME];
+					if (since < idlestSince) {
+						idlest = slot;
+						idlestSince = since;
+					}
+				}
+			}
+			if (idlest < 0 || now - idlestSince < idleMillis) {
+				return -1;
+			}
+			synchronized (stripes[idlest & (STRIPES - 1)]) {
+				if (written[idlest] == 0 || records[offsetOf(idlest, written[idlest] - 1) + TIME] != idlestSince) {
+					// written to meanwhile, no longer idle
+					return -1;
+				}
+				written[idlest] = 0;
+				accounts.set(idlest, key);
+				evicted.increment();
+				return idlest;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "TransferHistory [accounts=" + accounts.length() + ", perAccount=" + perAccount + ", dropped=" + dropped() + ", evicted=" + evicted() + "]";
+	}
+}
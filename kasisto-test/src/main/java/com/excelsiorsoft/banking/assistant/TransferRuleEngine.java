@@ -0,0 +1,344 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Validates transfers against a configured set of {@link Rule}s.
+ *
+ * <li> the configuration is compiled once into an array of rules with their thresholds bound,
+ * evaluated as a short-circuiting chain over the primitive {@link TransferFacts}
+ * <li> every rule keeps count of how often it rejects and, on a sample of evaluations, what it costs. 
+ * A rule takes a few nanoseconds, less than reading the clock, so a sample times a batch of
+ * {@link #TIMING_BATCH} repetitions of the rule.
+ * <li> every {@link #DEFAULT_REORDER_INTERVAL} evaluations the chain is reordered by cost per rejection,
+ * so that cheap and selective rules run first, and republished through a volatile write. Preconditions,
+ * which later rules rely on, stay at the front in their configured order.
+ *
+ * @author Simeon
+ *
+ */
+public final class TransferRuleEngine {
+
+	public static final long DEFAULT_DAILY_LIMIT = 5_000_00;
+	public static final long DEFAULT_FRAUD_THRESHOLD = 10_000_00;
+	public static final int DEFAULT_REORDER_INTERVAL = 4096;
+
+	/** Rejection code of a transfer that passed every rule */
+	public static final int PASSED = 0;
+
+	private static final int TIMING_SAMPLE_MASK = 0xff;
+	private static final int TIMING_BATCH = 32;
+
+	/**
+	 * Checks the engine can be configured with. A rule returns true when the transfer may proceed.
+	 */
+	public enum Rule {
+		KNOWN_ACCOUNTS(true) {
+			@Override
+			boolean test(TransferFacts facts, long threshold) {
+				return facts.sourceBalance != BalanceStore.NO_BALANCE && facts.destinationKnown;
+			}
+		},
+		SAME_ACCOUNT(true) {
+			@Override
+			boolean test(TransferFacts facts, long threshold) {
+				return facts.sourceId != facts.destinationId;
+			}
+		},
+		SUFFICIENT_FUNDS(false) {
+			@Override
+			boolean test(TransferFacts facts, long threshold) {
+				return facts.sourceBalance >= facts.amount;
+			}
+		},
+		DAILY_LIMIT(false) {
+			@Override
+			boolean test(TransferFacts facts, long threshold) {
+				return facts.transferredToday + facts.amount <= threshold;
+			}
+		},
+		CD_MATURITY(false) {
+			@Override
+			boolean test(TransferFacts facts, long threshold) {
+				return facts.sourceType != BankingAssistant.AccountType.CD.ordinal() || facts.today >= facts.sourceMaturityDay;
+			}
+		},
+		FRAUD_THRESHOLD(false) {
+			@Override
+			boolean test(TransferFacts facts, long threshold) {
+				return facts.amount <= threshold;
+			}
+		},
+		POSITIVE_AMOUNT(true) {
+			@Override
+			boolean test(TransferFacts facts, long threshold) {
+				return facts.amount > 0;
+			}
+		};
+
+		/** rules by code - 1, as {@link #values()} copies the array on every call */
+		private static final Rule[] BY_CODE = values();
+
+		private final boolean precondition;
+
+		private Rule(boolean precondition) {
+			this.precondition = precondition;
+		}
+
+		abstract boolean test(TransferFacts facts, long threshold);
+
+		/**
+		 * @return true if other rules assume this one passed, so that it is never reordered behind them
+		 */
+		public boolean isPrecondition() {
+			return precondition;
+		}
+
+		/** Rejection code reported for this rule, never {@link TransferRuleEngine#PASSED} */
+		public int code() {
+			return ordinal() + 1;
+		}
+
+		/**
+		 * @return rule reported under <code>code</code> or null for {@link TransferRuleEngine#PASSED}
+		 */
+		public static Rule ofCode(int code) {
+			return code == PASSED ? null : BY_CODE[code - 1];
+		}
+	}
+
+	/**
+	 * Everything the rules look at, as primitives. Instances are mutable and meant to be reused by their owner.
+	 */
+	public static final class TransferFacts {
+
+		long sourceId;
+		long destinationId;
+		boolean destinationKnown;
+		int sourceType;
+		long amount;
+		long sourceBalance;
+		long transferredToday;
+		int today;
+		int sourceMaturityDay;
+
+		public TransferFacts set(long sourceId, long destinationId, int sourceType, long amount) {
+			this.sourceId = sourceId;
+			this.destinationId = destinationId;
+			this.sourceType = sourceType;
+			this.amount = amount;
+			return this;
+		}
+
+		public TransferFacts withSourceState(long sourceBalance, long transferredToday, int today, int sourceMaturityDay) {
+			this.sourceBalance = sourceBalance;
+			this.transferredToday = transferredToday;
+			this.today = today;
+			this.sourceMaturityDay = sourceMaturityDay;
+			return this;
+		}
+
+		public TransferFacts withDestinationKnown(boolean destinationKnown) {
+			this.destinationKnown = destinationKnown;
+			return this;
+		}
+	}
+
+	private static final class CompiledRule {
+
+		final Rule rule;
+		final long threshold;
+		final LongAdder evaluations = new LongAdder();
+		final LongAdder rejections = new LongAdder();
+		final LongAdder sampledEvaluations = new LongAdder();
+		final LongAdder sampledNanos = new LongAdder();
+
+		CompiledRule(Rule rule, long threshold) {
+			this.rule = rule;
+			this.threshold = threshold;
+		}
+
+		/**
+		 * Expected cost paid per rejection; the chain is sorted ascending by it
+		 */
+		double rank() {
+			double samples = sampledEvaluations.sum();
+			double cost = samples == 0 ? 1 : Math.max(1, sampledNanos.sum() / samples);
+			double selectivity = (rejections.sum() + 1d) / (evaluations.sum() + 2d);
+			return cost / selectivity;
+		}
+
+		@Override
+		public String toString() {
+			return rule + " [evaluations=" + evaluations.sum() + ", rejections=" + rejections.sum()
+					+ ", avgNanos=" + (sampledEvaluations.sum() == 0 ? 0 : sampledNanos.sum() / sampledEvaluations.sum()) + "]";
+		}
+	}
+
+	private volatile CompiledRule[] chain;
+	/** leading rules of the chain that are preconditions */
+	private final int preconditions;
+	private final int reorderInterval;
+	private final long dailyLimit;
+	private final AtomicLong evaluations = new AtomicLong();
+	private final AtomicBoolean reordering = new AtomicBoolean();
+
+	private TransferRuleEngine(CompiledRule[] chain, int reorderInterval) {
+		this.chain = chain;
+		this.reorderInterval = reorderInterval;
+		int preconditions = 0;
+		long dailyLimit = Long.MAX_VALUE;
+		for (CompiledRule rule : chain) {
+			preconditions += rule.rule.isPrecondition() ? 1 : 0;
+			dailyLimit = rule.rule == Rule.DAILY_LIMIT ? rule.threshold : dailyLimit;
+		}
+		this.preconditions = preconditions;
+		this.dailyLimit = dailyLimit;
+	}
+
+	/**
+	 * Every rule, default thresholds
+	 */
+	public static TransferRuleEngine defaults() {
+		return fromProperties(new Properties());
+	}
+
+	/**
+	 * Compiles a rule set from
+	 * <li> <code>transfer.rules</code> - comma separated {@link Rule} names, all of them by default
+	 * <li> <code>transfer.rules.dailyLimit</code>, <code>transfer.rules.fraudThreshold</code> - in dollars
+	 * <li> <code>transfer.rules.reorderInterval</code> - evaluations between reorderings, positive
+	 * @throws IllegalArgumentException on an unknown rule name or a reorder interval that is not positive
+	 */
+	public static TransferRuleEngine fromProperties(Properties config) {
+		String names = config.getProperty("transfer.rules");
+		List<Rule> rules = new ArrayList<>();
+		if (names == null) {
+			rules.addAll(Arrays.asList(Rule.values()));
+		} else {
+			for (String name : names.split(",")) {
+				if (!name.trim().isEmpty()) {
+					rules.add(Rule.valueOf(name.trim().toUpperCase()));
+				}
+			}
+		}
+
+		// preconditions first, otherwise in the configured order
+		rules.sort(Comparator.comparing(rule -> !rule.isPrecondition()));
+
+		long dailyLimit = dollars(config, "transfer.rules.dailyLimit", DEFAULT_DAILY_LIMIT);
+		long fraudThreshold = dollars(config, "transfer.rules.fraudThreshold", DEFAULT_FRAUD_THRESHOLD);
+		CompiledRule[] chain = new CompiledRule[rules.size()];
+		for (int i = 0; i < chain.length; i++) {
+			Rule rule = rules.get(i);
+			chain[i] = new CompiledRule(rule, rule == Rule.DAILY_LIMIT ? dailyLimit : rule == Rule.FRAUD_THRESHOLD ? fraudThreshold : 0);
+		}
+		int reorderInterval = Integer.parseInt(config.getProperty("transfer.rules.reorderInterval", Integer.toString(DEFAULT_REORDER_INTERVAL)));
+		if (reorderInterval <= 0) {
+			throw new IllegalArgumentException("transfer.rules.reorderInterval must be positive: " + reorderInterval);
+		}
+		return new TransferRuleEngine(chain, reorderInterval);
+	}
+
+	private static long dollars(Properties config, String key, long defaultMinorUnits) {
+		String value = config.getProperty(key);
+		return value == null ? defaultMinorUnits : Math.round(Double.parseDouble(value) * 100);
+	}
+
+	/**
+	 * Runs the chain until the first rejection
+	 * @return {@link #PASSED} or the {@link Rule#code()} of the rejecting rule
+	 */
+	public int evaluate(TransferFacts facts) {
+		CompiledRule[] rules = chain;
+		long evaluation = evaluations.incrementAndGet();
+		boolean timed = (evaluation & TIMING_SAMPLE_MASK) == 0;
+
+		int rejection = PASSED;
+		for (CompiledRule rule : rules) {
+			boolean passed = timed ? timedTest(rule, facts) : rule.rule.test(facts, rule.threshold);
+			rule.evaluations.increment();
+			if (!passed) {
+				rule.rejections.increment();
+				rejection = rule.rule.code();
+				break;
+			}
+		}
+
+		if (evaluation % reorderInterval == 0) {
+			reorder();
+		}
+		return rejection;
+	}
+
+	/**
+	 * Runs the rule {@link #TIMING_BATCH} times under one pair of clock readings
+	 */
+	private static boolean timedTest(CompiledRule rule, TransferFacts facts) {
+		int passes = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < TIMING_BATCH; i++) {
+			// the outcome is used, so that the repetitions are not optimized away
+			passes += rule.rule.test(facts, rule.threshold) ? 1 : 0;
+		}
+		rule.sampledNanos.add(System.nanoTime() - start);
+		rule.sampledEvaluations.add(TIMING_BATCH);
+		return passes == TIMING_BATCH;
+	}
+
+	void reorder() {
+		if (!reordering.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			CompiledRule[] reordered = chain.clone();
+			double[] ranks = new double[reordered.length];
+			for (int i = 0; i < reordered.length; i++) {
+				ranks[i] = reordered[i].rank();
+			}
+			Integer[] order = new Integer[reordered.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			// preconditions keep their place
+			Arrays.sort(order, preconditions, order.length, Comparator.comparingDouble(i -> ranks[i]));
+			CompiledRule[] sorted = new CompiledRule[reordered.length];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = reordered[order[i]];
+			}
+			chain = sorted;
+		} finally {
+			reordering.set(false);
+		}
+	}
+
+	/**
+	 * @return daily limit in minor units the chain checks, {@link Long#MAX_VALUE} without {@link Rule#DAILY_LIMIT}
+	 */
+	public long dailyLimit() {
+		return dailyLimit;
+	}
+
+	/**
+	 * @return rules in the order they are currently evaluated
+	 */
+	public List<Rule> order() {
+		List<Rule> order = new ArrayList<>();
+		for (CompiledRule rule : chain) {
+			order.add(rule.rule);
+		}
+		return order;
+	}
+
+	@Override
+	public String toString() {
+		return "TransferRuleEngine [chain=" + Arrays.toString(chain) + "]";
+	}
+}
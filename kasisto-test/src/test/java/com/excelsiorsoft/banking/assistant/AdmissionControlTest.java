@@ -0,0 +1,144 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.RateLimitedResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.TransferResult;
+
+public class AdmissionControlTest {
+
+	private final AtomicLong millis = new AtomicLong(1_000);
+
+	@Test
+	public void bucketRefillsAtTheConfiguredRate() {
+		AdmissionControl admission = AdmissionControl.builder().withUserRate(10, 3).build(millis::get);
+		assertThat(admission.tryAcquire(1)).isTrue();
+		assertThat(admission.tryAcquire(1)).isTrue();
+		assertThat(admission.tryAcquire(1)).isTrue();
+		assertThat(admission.tryAcquire(1)).isFalse();
+
+		millis.addAndGet(99);
+		assertThat(admission.tryAcquire(1)).as("not a full token yet").isFalse();
+		millis.addAndGet(1);
+		assertThat(admission.tryAcquire(1)).isTrue();
+		assertThat(admission.tryAcquire(1)).isFalse();
+
+		millis.addAndGet(60_000);
+		for (int i = 0; i < 3; i++) {
+			assertThat(admission.tryAcquire(1)).as("refill is capped by the burst").isTrue();
+		}
+		assertThat(admission.tryAcquire(1)).isFalse();
+		assertThat(admission.admitted()).isEqualTo(7);
+		assertThat(admission.rejectedForUser()).isEqualTo(4);
+	}
+
+	@Test
+	public void usersAreLimitedSeparately() {
+		AdmissionControl admission = AdmissionControl.builder().withUserRate(1, 2).withUsers(16).build(millis::get);
+		assertThat(admission.tryAcquire(7)).isTrue();
+		assertThat(admission.tryAcquire(7)).isTrue();
+		assertThat(admission.tryAcquire(7)).isFalse();
+		for (long user = 100; user < 110; user++) {
+			assertThat(admission.tryAcquire(user)).as("user " + user).isTrue();
+		}
+	}
+
+	@Test
+	public void floodingBeyondAFullTableLeavesTrackedUsersAlone() {
+		AdmissionControl admission = AdmissionControl.builder().withUserRate(1, 2).withUsers(8).build(millis::get);
+		for (long user = 1; user <= 8; user++) {
+			assertThat(admission.tryAcquire(user)).as("user " + user).isTrue();
+		}
+		// every slot is held by a user with a bucket still refilling
+		assertThat(admission.tryAcquire(100)).isTrue();
+		assertThat(admission.tryAcquire(100)).isTrue();
+		for (int i = 0; i < 10; i++) {
+			assertThat(admission.tryAcquire(100)).isFalse();
+		}
+		assertThat(admission.tryAcquire(101)).as("shares the overflow bucket with the flooder").isFalse();
+		for (long user = 1; user <= 8; user++) {
+			assertThat(admission.tryAcquire(user)).as("user " + user).isTrue();
+		}
+	}
+
+	@Test
+	public void globalRejectionGivesTheUserTokenBack() {
+		AdmissionControl admission = AdmissionControl.builder().withUserRate(1, 2).withGlobalRate(1, 1).build(millis::get);
+		assertThat(admission.tryAcquire(1)).isTrue();
+		assertThat(admission.tryAcquire(2)).isFalse();
+		assertThat(admission.rejectedGlobally()).isEqualTo(1);
+
+		millis.addAndGet(1_000);
+		assertThat(admission.tryAcquire(2)).isTrue();
+		millis.addAndGet(1_000);
+		assertThat(admission.tryAcquire(2)).as("user 2 still has the token refunded earlier").isTrue();
+	}
+
+	@Test
+	public void concurrentCallersNeverExceedTheBurst() throws Exception {
+		AdmissionControl admission = AdmissionControl.builder().withUserRate(1, 1000).withGlobalRate(1, 1500).build(millis::get);
+		AtomicInteger granted = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			long user = t % 2;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < 2_000; i++) {
+					if (admission.tryAcquire(user)) granted.incrementAndGet();
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(granted.get()).isEqualTo(1500);
+		assertThat(admission.admitted() + admission.rejected()).isEqualTo(16_000);
+	}
+
+	@Test
+	public void admissionDoesNotAllocate() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		AdmissionControl admission = AdmissionControl.builder().withUserRate(1000, 1000).withGlobalRate(1000, 1000).build(millis::get);
+		for (int i = 0; i < 100_000; i++) {
+			admission.tryAcquire(i & 63);
+			millis.incrementAndGet();
+		}
+		long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 100_000; i++) {
+			admission.tryAcquire(i & 63);
+			millis.incrementAndGet();
+		}
+		assertThat(threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before).isLessThan(1024);
+	}
+
+	@Test
+	public void overLimitRequestsAreNotProcessed() {
+		AdmissionControl admission = AdmissionControl.builder().withUserRate(1, 2).build(millis::get);
+		ActionController controller = ActionController.builder().withVerbose(false).withAdmission(admission).build();
+
+		assertThat(controller.produceAction("Transfer $20 from checking to savings please.")).isInstanceOf(TransferResult.class);
+		assertThat(controller.produceAction("Transfer $20 from checking to savings please.")).isInstanceOf(TransferResult.class);
+		assertThat(controller.produceAction("Transfer $20 from checking to savings please.")).isInstanceOf(RateLimitedResult.class);
+		assertThat(controller.produceAction(ActionController.DEFAULT_USER_ID + 1, "What is the balance of my checking account?"))
+				.isNotInstanceOf(RateLimitedResult.class);
+		assertThat(admission.rejected()).isEqualTo(1);
+	}
+}
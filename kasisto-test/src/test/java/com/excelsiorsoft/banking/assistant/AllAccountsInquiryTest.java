@@ -0,0 +1,123 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.AccountType;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.DisplayAction;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.DisplayContext;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.DisplayResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Result;
+
+public class AllAccountsInquiryTest {
+
+	private final BalanceStore balances = ActionController.demoBalances();
+	private final ExecutorService lookups = Executors.newFixedThreadPool(AccountType.values().length);
+
+	@After
+	public void shutdown() {
+		lookups.shutdownNow();
+	}
+
+	@Test
+	public void balancesOfEveryAccountAndTheirTotal() {
+		Result result = ActionController.builder().withVerbose(false).withBalances(balances).build().produceAction("what are my balances?");
+
+		assertThat(result).isInstanceOf(DisplayResult.class);
+		DisplayResult display = (DisplayResult) result;
+		assertThat(display.getAccounts()).extracting("type").containsExactly(AccountType.CHECKING, AccountType.SAVINGS, AccountType.CD);
+		assertThat(display.getAccounts()).extracting("acctAmount").containsExactly("1000.0", "500.0", "800.0");
+		assertThat(display.getTotalAmount()).isEqualTo("2300.0");
+		assertThat(display.isPartial()).isFalse();
+		assertThat(display.isSuccess()).isTrue();
+	}
+
+	@Test
+	public void lookupsRunConcurrently() {
+		DisplayAction action = new DisplayAction(balances, slow(150, -1), lookups, TimeUnit.SECONDS.toNanos(2), false);
+
+		long start = System.nanoTime();
+		DisplayResult display = (DisplayResult) action.execute(new DisplayContext("show all my accounts"));
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertThat(display.getAccounts()).hasSize(3);
+		assertThat(elapsedMillis).as("close to one lookup, not three").isLessThan(400);
+	}
+
+	@Test
+	public void slowAccountsAreLeftOutAtTheDeadline() {
+		long cd = AccountType.CD.accountIdOf(ActionController.DEFAULT_USER_ID);
+		DisplayAction action = new DisplayAction(balances, slow(5_000, cd), lookups, TimeUnit.MILLISECONDS.toNanos(100), false);
+
+		long start = System.nanoTime();
+		DisplayResult display = (DisplayResult) action.execute(new DisplayContext("what are my balances?"));
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertThat(display.getAccounts()).extracting("type").containsExactly(AccountType.CHECKING, AccountType.SAVINGS);
+		assertThat(display.getMissingAccounts()).containsExactly(AccountType.CD);
+		assertThat(display.getTotalAmount()).isEqualTo("1500.0");
+		assertThat(display.isPartial()).isTrue();
+		assertThat(display.isSuccess()).isTrue();
+		assertThat(elapsedMillis).isLessThan(1_000);
+	}
+
+	@Test
+	public void busyCommonPoolDoesNotHoldLookupsUp() throws InterruptedException {
+		ActionController controller = ActionController.builder().withVerbose(false).withBalances(balances).build();
+		CountDownLatch release = new CountDownLatch(1);
+		int workers = ForkJoinPool.getCommonPoolParallelism();
+		CountDownLatch busy = new CountDownLatch(workers);
+		for (int i = 0; i < workers; i++) {
+			ForkJoinPool.commonPool().execute(() -> {
+				busy.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		try {
+			busy.await(5, TimeUnit.SECONDS);
+			DisplayResult display = (DisplayResult) controller.produceAction("what are my balances?");
+			assertThat(display.isPartial()).isFalse();
+			assertThat(display.getTotalAmount()).isEqualTo("2300.0");
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void namedAccountIsStillLookedUpAlone() {
+		DisplayResult display = (DisplayResult) new DisplayAction(balances).execute(new DisplayContext("Savings account balance please."));
+		assertThat(display.getAccounts()).isEmpty();
+		assertThat(display.getTotalAmount()).isNull();
+		assertThat(display.toString()).contains("targetAcctAmount=500.0");
+	}
+
+	/**
+	 * Lookup taking <code>millis</code> for the given account, or for every account when -1
+	 */
+	private LongUnaryOperator slow(long millis, long slowAccount) {
+		return accountId -> {
+			if (slowAccount < 0 || accountId == slowAccount) {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return balances.balance(accountId);
+		};
+	}
+}
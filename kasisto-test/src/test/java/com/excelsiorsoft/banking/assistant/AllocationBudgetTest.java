@@ -0,0 +1,99 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+
+/**
+ * Bytes allocated by the request path, per intent, measured with the per-thread allocation counter
+ * after warm-up. A budget is given in bytes per request by <code>-Dkasisto.alloc.&lt;intent&gt;=</code>
+ * and defaults to {@link #DEFAULT_BUDGETS}.
+ */
+public class AllocationBudgetTest {
+
+	/** Bytes per request, a margin above what the request path allocates today */
+	private static final Properties DEFAULT_BUDGETS = new Properties();
+	static {
+		DEFAULT_BUDGETS.setProperty("transfer", "1200");
+		DEFAULT_BUDGETS.setProperty("display", "1000");
+		DEFAULT_BUDGETS.setProperty("clarification", "600");
+		DEFAULT_BUDGETS.setProperty("none", "400");
+		DEFAULT_BUDGETS.setProperty("multi", "3000");
+	}
+
+	private static final int WARM_UP = 20_000;
+	private static final int MEASURED = 5_000;
+
+	private static com.sun.management.ThreadMXBean threads;
+
+	@BeforeClass
+	public static void allocationCounter() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Test
+	public void transfer() {
+		assertWithinBudget("transfer", "Transfer $20 from checking to savings please.", "move 20 dollars from savings to checking");
+	}
+
+	@Test
+	public void display() {
+		assertWithinBudget("display", "What is the balance of my checking account?", "Tell me my CD balance");
+	}
+
+	@Test
+	public void clarification() {
+		assertWithinBudget("clarification", "xyz qwerty", "hmm checking");
+	}
+
+	@Test
+	public void none() {
+		assertWithinBudget("none", "hello", "thanks");
+	}
+
+	@Test
+	public void multi() {
+		assertWithinBudget("multi", "move $5 from savings to checking and tell me my CD balance",
+				"send 5 dollars from checking to savings and then show my savings balance");
+	}
+
+	/**
+	 * Alternates two requests, so that transfers go back and forth and balances stay put. Clauses run
+	 * on the calling thread, whose counter is the one read.
+	 */
+	private static void assertWithinBudget(String intent, String line, String other) {
+		ActionController controller = ActionController.builder().withVerbose(false).withRules(unlimited()).withClauseExecutor(Runnable::run)
+				.build();
+		for (int i = 0; i < WARM_UP; i++) {
+			controller.produceAction((i & 1) == 0 ? line : other);
+		}
+
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < MEASURED; i++) {
+			controller.produceAction((i & 1) == 0 ? line : other);
+		}
+		long perRequest = (threads.getThreadAllocatedBytes(thread) - before) / MEASURED;
+
+		long budget = Long.getLong("kasisto.alloc." + intent, Long.parseLong(DEFAULT_BUDGETS.getProperty(intent)));
+		System.out.println("Allocated per " + intent + " request: " + perRequest + " bytes (budget " + budget + ")");
+		assertThat(perRequest).as("bytes allocated per " + intent + " request").isLessThanOrEqualTo(budget);
+	}
+
+	private static TransferRuleEngine unlimited() {
+		Properties config = new Properties();
+		config.setProperty("transfer.rules.dailyLimit", "1000000000");
+		return TransferRuleEngine.fromProperties(config);
+	}
+}
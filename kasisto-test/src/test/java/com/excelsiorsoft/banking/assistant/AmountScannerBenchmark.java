@@ -0,0 +1,69 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares finding the amount of a request with the amount patterns the grammar used to hold and
+ * with {@link AmountScanner}.
+ *
+ * <pre>
+ * java ... AmountScannerBenchmark [requests] [rounds]
+ * </pre>
+ * Each round runs both over the same requests and sums up the minor units found, so that neither loop
+ * can be optimized away. The patterns only know whole dollars in figures, so their sum comes out lower.
+ * @author Simeon
+ *
+ */
+public final class AmountScannerBenchmark {
+
+	private static final String[] UTTERANCES = {
+			"Can you transfer from my CD 200 dollars to my checking, please?",
+			"Transfer $20 from checking to savings please.",
+			"please move $1,250.50 from my checking account to my savings account",
+			"send twenty five bucks from savings to checking",
+			"move 1.5k into my CD",
+	};
+
+	private static final Pattern[] FORMATS = {
+			Pattern.compile("\\$\\s*(\\d+)", Pattern.CASE_INSENSITIVE),
+			Pattern.compile("(\\d+)\\s*(?:dollars|dollar|bucks|usd)\\b", Pattern.CASE_INSENSITIVE),
+			Pattern.compile("(\\d+)", Pattern.CASE_INSENSITIVE),
+	};
+
+	public static void main(String... args) {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		AmountScanner scanner = AmountScanner.defaults();
+
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			long regexSum = 0;
+			for (int i = 0; i < requests; i++) {
+				regexSum += regex(UTTERANCES[i % UTTERANCES.length]);
+			}
+			long regexNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long scannerSum = 0;
+			for (int i = 0; i < requests; i++) {
+				scannerSum += scanner.scan(UTTERANCES[i % UTTERANCES.length]);
+			}
+			long scannerNanos = System.nanoTime() - start;
+
+			System.out.println(String.format("round %2d: regex %6.1f ms (%5.0f ns/request), scanner %6.1f ms (%5.0f ns/request), %.1fx, sums %d / %d",
+					round, regexNanos / 1e6, (double) regexNanos / requests, scannerNanos / 1e6, (double) scannerNanos / requests,
+					(double) regexNanos / scannerNanos, regexSum, scannerSum));
+		}
+	}
+
+	private static long regex(CharSequence line) {
+		for (Pattern format : FORMATS) {
+			Matcher matcher = format.matcher(line);
+			if (matcher.find()) {
+				return Long.parseLong(matcher.group(1)) * 100;
+			}
+		}
+		return AmountScanner.NO_AMOUNT;
+	}
+}
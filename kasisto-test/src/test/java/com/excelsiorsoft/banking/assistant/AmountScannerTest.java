@@ -0,0 +1,107 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static com.excelsiorsoft.banking.assistant.AmountScanner.NO_AMOUNT;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+
+public class AmountScannerTest {
+
+	private final AmountScanner scanner = AmountScanner.defaults();
+
+	@Test
+	public void figures() {
+		assertThat(scanner.scan("transfer $1,250.50 from checking to savings")).isEqualTo(1250_50);
+		assertThat(scanner.scan("Transfer $20 from checking to savings please.")).isEqualTo(20_00);
+		assertThat(scanner.scan("move $ 7.5 to my CD")).isEqualTo(7_50);
+		assertThat(scanner.scan("send 19.999 to savings")).isEqualTo(20_00);
+		assertThat(scanner.scan("send 12,5 to savings")).as("not a thousands separator").isEqualTo(12_00);
+		assertThat(scanner.scan("pay 1,000,000 dollars")).isEqualTo(1_000_000_00L);
+	}
+
+	@Test
+	public void magnitudes() {
+		assertThat(scanner.scan("move 1.5k into savings")).isEqualTo(1500_00);
+		assertThat(scanner.scan("move 2 grand into savings")).isEqualTo(2000_00);
+		assertThat(scanner.scan("wire 3 thousand dollars")).isEqualTo(3000_00);
+		assertThat(scanner.scan("wire 1.25 million")).isEqualTo(1_250_000_00L);
+	}
+
+	@Test
+	public void numberWords() {
+		assertThat(scanner.scan("send twenty dollars to savings")).isEqualTo(20_00);
+		assertThat(scanner.scan("Fifty bucks from checking please")).isEqualTo(50_00);
+		assertThat(scanner.scan("move twenty-five from savings")).isEqualTo(25_00);
+		assertThat(scanner.scan("move a hundred to my CD")).isEqualTo(100_00);
+		assertThat(scanner.scan("move two thousand three hundred twelve")).isEqualTo(2312_00);
+		assertThat(scanner.scan("send a check to savings")).isEqualTo(NO_AMOUNT);
+	}
+
+	@Test
+	public void moneyIsPreferredOverOtherNumbers() {
+		assertThat(scanner.scan("transfer from my CD 200 dollars to my checking")).isEqualTo(200_00);
+		assertThat(scanner.scan("on day 3 move 40 bucks to savings")).isEqualTo(40_00);
+		assertThat(scanner.scan("on day 3 move 40 to savings")).as("first number without money").isEqualTo(3_00);
+		assertThat(scanner.scan("send 75 cents to checking")).isEqualTo(75);
+		assertThat(AmountScanner.withCurrencies("quid").scan("send 5 to savings, it is 12 quid")).isEqualTo(12_00);
+	}
+
+	@Test
+	public void noAmount() {
+		assertThat(scanner.scan("send money from checking to savings")).isEqualTo(NO_AMOUNT);
+		assertThat(scanner.scan("")).isEqualTo(NO_AMOUNT);
+		assertThat(scanner.scan("move 99999999999999999999 dollars")).as("too large").isEqualTo(NO_AMOUNT);
+		assertThat(new ActionController().produceAction("I want to transfer money to my savings").toString())
+				.contains("the amount to transfer is missing");
+	}
+
+	@Test
+	public void negativeFiguresAreNoAmount() {
+		assertThat(scanner.scan("transfer -$20 from checking to savings")).isEqualTo(NO_AMOUNT);
+		assertThat(scanner.scan("move -20 dollars to savings")).isEqualTo(NO_AMOUNT);
+		assertThat(scanner.scan("move $-20 to savings")).isEqualTo(NO_AMOUNT);
+		assertThat(scanner.scan("-5 bucks to my CD")).isEqualTo(NO_AMOUNT);
+		assertThat(scanner.scan("move 10-20 to savings")).as("a range, not a sign").isEqualTo(10_00);
+		assertThat(scanner.scan("move twenty-five - to savings")).isEqualTo(25_00);
+		assertThat(new ActionController().produceAction("transfer -$20 from checking to savings").toString())
+				.contains("the amount to transfer is missing");
+	}
+
+	@Test
+	public void dollarsAreWrittenWithTheirSign() {
+		assertThat(AmountScanner.toDollars(20_00)).isEqualTo("20");
+		assertThat(AmountScanner.toDollars(1_05)).isEqualTo("1.05");
+		assertThat(AmountScanner.toDollars(-1_50)).isEqualTo("-1.50");
+		assertThat(AmountScanner.toDollars(-20_00)).isEqualTo("-20");
+		assertThat(AmountScanner.toDollars(-5)).isEqualTo("-0.05");
+		assertThat(AmountScanner.toDollars(NO_AMOUNT)).isEqualTo("none");
+	}
+
+	@Test
+	public void scanningDoesNotAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		StringBuilder line = new StringBuilder("please wire $1,250.50, or rather twenty five bucks, to savings");
+		long sum = 0;
+		for (int i = 0; i < 20_000; i++) {
+			sum += scanner.scan(line);
+		}
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < 20_000; i++) {
+			sum += scanner.scan(line);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		assertThat(sum).isEqualTo(40_000L * 1250_50);
+		assertThat(allocated).as("bytes allocated by 20000 scans").isLessThan(1024);
+	}
+}
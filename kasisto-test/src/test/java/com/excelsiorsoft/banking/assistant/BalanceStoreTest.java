@@ -0,0 +1,152 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BalanceStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void opensAndLooksUpAccounts() {
+		BalanceStore store = BalanceStore.allocateDirect(100_000);
+		for (long id = 0; id < 100_000; id++) {
+			assertThat(store.open(id * 7, id)).isTrue();
+		}
+		
+		assertThat(store.size()).isEqualTo(100_000);
+		assertThat(store.open(7, 0)).isFalse();
+		assertThat(store.balance(99_999 * 7)).isEqualTo(99_999);
+		assertThat(store.balance(3)).isEqualTo(BalanceStore.NO_BALANCE);
+	}
+
+	@Test
+	public void transferRefusesToOverdraw() {
+		BalanceStore store = BalanceStore.allocateDirect(2);
+		store.open(1, 100);
+		store.open(2, 0);
+		
+		assertThat(store.transfer(1, 2, 60)).isTrue();
+		assertThat(store.transfer(1, 2, 60)).isFalse();
+		assertThat(store.balance(1)).isEqualTo(40);
+		assertThat(store.balance(2)).isEqualTo(60);
+		assertThat(store.transfer(1, 3, 10)).isFalse();
+	}
+
+	@Test
+	public void transferKeepsWithinTheDailyLimit() {
+		BalanceStore store = BalanceStore.allocateDirect(2);
+		store.open(1, 1_000);
+		store.open(2, 0);
+		
+		assertThat(store.transfer(1, 2, 60, 10, 100)).isEqualTo(BalanceStore.TRANSFERRED);
+		assertThat(store.transfer(1, 2, 60, 10, 100)).isEqualTo(BalanceStore.OVER_DAILY_LIMIT);
+		assertThat(store.transfer(1, 2, 40, 10, 100)).isEqualTo(BalanceStore.TRANSFERRED);
+		assertThat(store.transfer(1, 2, 60, 11, 100)).as("next day").isEqualTo(BalanceStore.TRANSFERRED);
+		assertThat(store.transfer(1, 3, 10, 11, 100)).isEqualTo(BalanceStore.UNKNOWN_ACCOUNT);
+		assertThat(store.balance(2)).isEqualTo(160);
+		assertThat(store.transferredOn(1, 11)).isEqualTo(60);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsAccountsBeyondCapacity() {
+		BalanceStore store = BalanceStore.allocateDirect(1);
+		store.open(1, 0);
+		store.open(2, 0);
+	}
+
+	@Test
+	public void concurrentTransfersConserveMoney() throws InterruptedException {
+		BalanceStore store = BalanceStore.allocateDirect(16);
+		for (long id = 0; id < 16; id++) {
+			store.open(id, 1_000_000);
+		}
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 100_000; i++) {
+					store.transfer((i + seed) % 16, (i * 3 + seed + 1) % 16, 1);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		long total = 0;
+		for (long id = 0; id < 16; id++) {
+			total += store.balance(id);
+		}
+		assertThat(total).isEqualTo(16_000_000L);
+	}
+
+	@Test
+	public void depositsDuringTransfersAreNotLost() throws InterruptedException {
+		BalanceStore store = BalanceStore.allocateDirect(4);
+		for (long id = 0; id < 4; id++) {
+			store.open(id, 1_000);
+		}
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 100_000; i++) {
+					if (seed % 2 == 0) {
+						store.transfer((i + seed) % 4, (i + seed + 1) % 4, 1);
+					} else {
+						store.add(i % 4, 1);
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		long total = 0;
+		for (long id = 0; id < 4; id++) {
+			total += store.balance(id);
+		}
+		assertThat(total).isEqualTo(4_000 + 200_000);
+	}
+
+	@Test
+	public void mappedStoreSurvivesReopen() throws IOException {
+		File file = folder.newFile("balances.dat");
+		try (BalanceStore store = BalanceStore.map(file.toPath(), 1000)) {
+			store.open(42, 1_250_50);
+			store.add(42, 50);
+		}
+		try (BalanceStore store = BalanceStore.map(file.toPath(), 1000)) {
+			assertThat(store.size()).isEqualTo(1);
+			assertThat(store.balance(42)).isEqualTo(1_251_00);
+		}
+	}
+
+	@Test
+	public void mappedStoreChecksItsHeader() throws IOException {
+		File file = folder.newFile("balances.dat");
+		try (BalanceStore store = BalanceStore.map(file.toPath(), 10)) {
+			store.open(1, 100);
+		}
+		assertThatThrownBy(() -> BalanceStore.map(file.toPath(), 20)).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("capacity 10");
+
+		File other = folder.newFile("other.dat");
+		Files.write(other.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 });
+		assertThatThrownBy(() -> BalanceStore.map(other.toPath(), 10)).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("not a balance store");
+	}
+}
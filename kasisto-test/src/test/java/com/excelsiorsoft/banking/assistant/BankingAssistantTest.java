@@ -4,7 +4,9 @@ import static com.excelsiorsoft.banking.assistant.BankingAssistantTest.ClassPatt
 import static com.excelsiorsoft.banking.assistant.BankingAssistantTest.ParsingContext.emptyContext;
 
 
-import java.util.Scanner;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -15,48 +17,55 @@ import com.excelsiorsoft.banking.assistant.BankingAssistantTest.DisplayResult.Di
 import com.excelsiorsoft.banking.assistant.BankingAssistantTest.TransferResult.TransferResultBuilder;
 
 public class BankingAssistantTest {
+	
+	/** Console session the tests are fed with, instead of waiting on stdin */
+	private static final String SAMPLE = "Can you transfer from my CD 200 dollars to my checking, please?\n"
+			+ "Transfer $20 from checking to savings please.\r\n"
+			+ "What is the balance of my checking account?\n"
+			+ "Savings account balance please.";
+	
+	private static LineReader sample() {
+		return LineReader.of(new ByteArrayInputStream(SAMPLE.getBytes(StandardCharsets.UTF_8)));
+	}
 
 	@Test
-	public void test() {
-		try (Scanner scanner = new Scanner(System.in)) {
-			while (scanner.hasNextLine()) {
-				String line = scanner.nextLine();
+	public void test() throws IOException {
+		try (LineReader reader = sample()) {
+			for (CharSequence line = reader.nextLine(); line != null; line = reader.nextLine()) {
 				
 
 				System.out.println("I received your request: "+line+". Let me see if I have enough information to start processing it.");
 				
 				
-				boolean match = line.contains("balance");
+				boolean match = line.toString().contains("balance");
 				System.out.println("match: " +match);
 			}
 		}
 	}
 	
 	@Test
-	public void entryPoint() {
+	public void entryPoint() throws IOException {
 		
 		ActionController controller = new ActionController();
 		
-		try (Scanner scanner = new Scanner(System.in)) {
-			while (scanner.hasNextLine()) {
-				String line = scanner.nextLine();
+		try (LineReader reader = sample()) {
+			for (CharSequence line = reader.nextLine(); line != null; line = reader.nextLine()) {
 				System.out.println("I received your request: '"+line+"'  \nLet me see if I have enough information to start processing it.");
-				controller.produceAction(line);
+				controller.produceAction(line.toString());
 
 			}
 		}
 	}
 	
 	public static final class Main{
-		public static void main(String... args) {
+		public static void main(String... args) throws IOException {
 			
 			ActionController controller = new ActionController();
 			
-			try (Scanner scanner = new Scanner(System.in)) {
-				while (scanner.hasNextLine()) {
-					String line = scanner.nextLine();
+			try (LineReader reader = LineReader.of(System.in)) {
+				for (CharSequence line = reader.nextLine(); line != null; line = reader.nextLine()) {
 					System.out.println("I received your request: '"+line+"'  \nLet me see if I have enough information to start processing it.");
-					controller.produceAction(line);
+					controller.produceAction(line.toString());
 
 				}
 			}
@@ -0,0 +1,138 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.AccountType;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.DisplayResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Intent;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ProcessingBudget;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.TransferContext;
+
+public class GrammarTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void aliasesAndAmountFormatsOfTheDefaultGrammar() {
+		Grammar grammar = Grammar.defaults();
+		String line = "please move 30 bucks from my current account into my Savings Account";
+		assertThat(grammar.source(line)).isEqualTo("checking");
+		assertThat(grammar.destination(line)).isEqualTo("savings");
+		assertThat(grammar.amount(line)).isEqualTo(30_00);
+		assertThat(grammar.amount("transfer from my CD 200 dollars to my checking")).isEqualTo(200_00);
+		assertThat(grammar.target("what is in my certificate of deposit")).isEqualTo("cd");
+		assertThat(grammar.accountOf("CHECKINGS")).isEqualTo(AccountType.CHECKING);
+	}
+
+	@Test
+	public void accountNamesAreKeptAsWritten() {
+		TransferContext context = new TransferContext("Can you transfer from my CD 200 dollars to my checking, please?");
+		assertThat(context.toString()).contains("source=CD, destination=checking, amount=200");
+	}
+
+	@Test
+	public void reloadSwapsTheWholeGrammar() throws IOException {
+		Path file = folder.newFile("grammar.properties").toPath();
+		write(file, "account.CHECKING=checking\n");
+
+		try (GrammarReloader grammars = GrammarReloader.onDemand(file)) {
+			ActionController controller = ActionController.builder().withVerbose(false).withGrammar(grammars).build();
+			Grammar before = grammars.current();
+			assertThat(before.accountOf("everyday")).isNull();
+
+			write(file, "account.CHECKING=checking, everyday\n");
+			assertThat(grammars.reload()).isTrue();
+			assertThat(grammars.current()).isNotSameAs(before);
+			assertThat(before.accountOf("everyday")).as("old snapshot is untouched").isNull();
+
+			DisplayResult result = (DisplayResult) controller.produceAction("show my everyday balance");
+			assertThat(result.toString()).contains("target=checking", "isSuccess=true");
+		}
+	}
+
+	@Test
+	public void brokenFileKeepsThePreviousGrammar() throws IOException {
+		Path file = folder.newFile("grammar.properties").toPath();
+		write(file, "account.SAVINGS=savings, rainy day\n");
+		try (GrammarReloader grammars = GrammarReloader.onDemand(file)) {
+			Grammar before = grammars.current();
+			write(file, "account.PIGGYBANK=piggy\n");
+			assertThat(grammars.reload()).isFalse();
+			assertThat(grammars.current()).isSameAs(before);
+			write(file, "");
+			assertThat(grammars.reload()).as("an empty file is a file being written").isFalse();
+			assertThat(grammars.current()).isSameAs(before);
+			assertThat(grammars.failures()).isEqualTo(2);
+		}
+	}
+
+	@Test
+	public void watcherPicksUpChanges() throws Exception {
+		Path file = folder.newFile("grammar.properties").toPath();
+		write(file, "amount.currency=quid\n");
+		try (GrammarReloader grammars = GrammarReloader.watch(file)) {
+			write(file, "account.CD=CD, term deposit\n");
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (grammars.current().accountOf("term deposit") == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertThat(grammars.current().accountOf("term deposit")).isEqualTo(AccountType.CD);
+			assertThat(grammars.reloads()).isGreaterThanOrEqualTo(1);
+		}
+	}
+
+	@Test
+	public void compiledFromProperties() {
+		Properties config = new Properties();
+		config.setProperty("amount.currency", "quid, clams");
+		Grammar grammar = Grammar.compile(config);
+		assertThat(grammar.amount(ProcessingBudget.defaultBudget().admit("send 5 to savings, it is 12 quid"))).isEqualTo(12_00);
+		assertThat(Grammar.defaults().amount("send 5 to savings, it is 12 quid")).isEqualTo(5_00);
+		assertThat(grammar.accountOf("savings")).isEqualTo(AccountType.SAVINGS);
+	}
+
+	@Test
+	public void trainingDoesNotDependOnTheOrderOfTheSettings() {
+		String[][] settings = {
+				{"intent.transfer", "shift, wire"},
+				{"intent.transfer.examples", "shift 20 to savings|wire my CD 100 dollars"},
+				{"intent.display", "balance, total"},
+				{"intent.display.examples", "what is my total|how much is left in checking"},
+				{"intent.history", "past, statement"},
+				{"intent.history.examples", "statement of my savings|past transfers of my CD"},
+				{"intent.none.examples", "cheers|see you"},
+				{"account.SAVINGS", "rainy day fund"},
+		};
+		Properties forward = new Properties();
+		Properties backward = new Properties();
+		for (int i = 0; i < settings.length; i++) {
+			forward.setProperty(settings[i][0], settings[i][1]);
+			backward.setProperty(settings[settings.length - 1 - i][0], settings[settings.length - 1 - i][1]);
+		}
+		IntentClassifier one = Grammar.compile(forward).classifier();
+		IntentClassifier other = Grammar.compile(backward).classifier();
+
+		float[] expected = new float[Intent.values().length];
+		float[] actual = new float[Intent.values().length];
+		for (String line : new String[] {"shift 5 to my rainy day fund", "what is my total", "statement please", "cheers"}) {
+			assertThat(other.classify(line, actual)).isEqualTo(one.classify(line, expected));
+			assertThat(actual).as(line).containsExactly(expected);
+		}
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,69 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.assertj.core.data.Offset;
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ClarificationResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Intent;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.NullResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Result;
+
+public class IntentClassifierTest {
+
+	private final IntentClassifier classifier = IntentClassifier.defaultClassifier();
+	private final float[] probabilities = IntentClassifier.newProbabilities();
+
+	@Test
+	public void overlappingVocabularyIsResolvedByContext() {
+		// none of these is among the seed utterances the classifier learnt from
+		assertThat(classify("please send 45 dollars from checking over to savings")).isEqualTo(Intent.TRANSFER);
+		assertThat(classify("transfer 300 from savings into my CD")).isEqualTo(Intent.TRANSFER);
+		assertThat(classify("send me the balance of savings")).isEqualTo(Intent.DISPLAY);
+		assertThat(classify("how much could I move out of checking")).isEqualTo(Intent.DISPLAY);
+		assertThat(classify("tell me the balance on my CD")).isEqualTo(Intent.DISPLAY);
+		assertThat(classify("what transfers did I do last week")).isEqualTo(Intent.HISTORY);
+		assertThat(classify("thank you so much")).isEqualTo(Intent.NONE);
+	}
+
+	@Test
+	public void probabilitiesAddUp() {
+		classifier.classify("What is the balance of my checking account?", probabilities);
+		float total = 0;
+		for (float probability : probabilities) {
+			assertThat(probability).isBetween(0f, 1f);
+			total += probability;
+		}
+		assertThat(total).isCloseTo(1f, Offset.offset(1e-4f));
+	}
+
+	@Test
+	public void unknownWordsAreNotConfident() {
+		Intent best = classifier.classify("xyz qwerty", probabilities);
+		assertThat(classifier.isConfident(best, probabilities)).isFalse();
+	}
+
+	@Test
+	public void lowConfidenceAsksForClarification() {
+		ActionController controller = ActionController.builder().withVerbose(false)
+				.withClassifier(IntentClassifier.train(IntentClassifier.SEED, 0.9999f)).build();
+
+		Result result = controller.produceAction("hmm checking");
+		assertThat(result).isInstanceOf(ClarificationResult.class);
+		assertThat(((ClarificationResult) result).getQuestion()).isNotEmpty();
+	}
+
+	@Test
+	public void nothingToDoIsAnsweredWithTheSharedEmptyResult() {
+		ActionController controller = ActionController.builder().withVerbose(false).build();
+		assertThat(controller.produceAction("hello")).isInstanceOf(NullResult.class).isSameAs(controller.produceAction("thanks"));
+	}
+
+	private Intent classify(String line) {
+		Intent best = classifier.classify(line, probabilities);
+		assertThat(classifier.isConfident(best, probabilities)).as(line).isTrue();
+		return best;
+	}
+}
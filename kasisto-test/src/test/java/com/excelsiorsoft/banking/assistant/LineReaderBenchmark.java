@@ -0,0 +1,74 @@
+package com.excelsiorsoft.banking.assistant;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * Compares reading piped input line by line with {@link Scanner} and with {@link LineReader}.
+ *
+ * <pre>
+ * java ... LineReaderBenchmark [lines] [rounds]
+ * </pre>
+ * Each round reads the same in-memory input with both and sums up characters seen, so that
+ * neither loop can be optimized away.
+ * @author Simeon
+ *
+ */
+public final class LineReaderBenchmark {
+
+	private static final String[] UTTERANCES = {
+			"Can you transfer from my CD 200 dollars to my checking, please?",
+			"Transfer $20 from checking to savings please.",
+			"What is the balance of my checking account?",
+			"Savings account balance please.",
+			"send 30 to savings and then show me my savings balance",
+	};
+
+	public static void main(String... args) throws IOException {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			input.append(UTTERANCES[i % UTTERANCES.length]).append('\n');
+		}
+		byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+		System.out.println("Input: " + lines + " lines, " + bytes.length / 1024 + " KiB");
+
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			long scannerChars = scanner(bytes);
+			long scannerNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long readerChars = lineReader(bytes);
+			long readerNanos = System.nanoTime() - start;
+
+			System.out.println(String.format("round %2d: Scanner %6.1f ms (%5.1f MB/s), LineReader %6.1f ms (%5.1f MB/s), %.1fx%s",
+					round, scannerNanos / 1e6, bytes.length * 1e3 / scannerNanos, readerNanos / 1e6, bytes.length * 1e3 / readerNanos,
+					(double) scannerNanos / readerNanos, scannerChars == readerChars ? "" : " MISMATCH"));
+		}
+	}
+
+	private static long scanner(byte[] bytes) {
+		long chars = 0;
+		try (Scanner scanner = new Scanner(new ByteArrayInputStream(bytes), "UTF-8")) {
+			while (scanner.hasNextLine()) {
+				chars += scanner.nextLine().length();
+			}
+		}
+		return chars;
+	}
+
+	private static long lineReader(byte[] bytes) throws IOException {
+		long chars = 0;
+		try (LineReader reader = LineReader.of(new ByteArrayInputStream(bytes))) {
+			for (CharSequence line = reader.nextLine(); line != null; line = reader.nextLine()) {
+				chars += line.length();
+			}
+		}
+		return chars;
+	}
+}
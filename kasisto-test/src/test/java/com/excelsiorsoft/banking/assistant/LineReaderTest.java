@@ -0,0 +1,93 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LineReaderTest {
+
+	@Test
+	public void splitsOnEveryTerminator() throws IOException {
+		assertThat(lines("first\nsecond\r\n\nlast", 64)).containsExactly("first", "second", "", "last");
+		assertThat(lines("only\n", 64)).containsExactly("only");
+		assertThat(lines("a line over the maximum\nnext", 64, 6)).containsExactly("a line", "next");
+		assertThat(lines("", 64)).isEmpty();
+	}
+
+	@Test
+	public void decodesCharactersSplitAcrossReads() throws IOException {
+		String text = "transfer \u20ac20 to caf\u00e9 \ud83d\ude00\r\nbalance";
+		for (int bufferSize = 1; bufferSize < 9; bufferSize++) {
+			assertThat(lines(text, bufferSize)).as("buffer of " + bufferSize).containsExactly("transfer \u20ac20 to caf\u00e9 \ud83d\ude00", "balance");
+		}
+	}
+
+	@Test
+	public void linesLongerThanTheBufferAreKeptWhole() throws IOException {
+		StringBuilder longLine = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			longLine.append("word ");
+		}
+		assertThat(lines(longLine + "\nshort", 16)).containsExactly(longLine.toString(), "short");
+	}
+
+	@Test
+	public void linesOverTheMaximumAreCut() throws IOException {
+		StringBuilder longLine = new StringBuilder();
+		for (int i = 0; i < 10_000; i++) {
+			longLine.append("word ");
+		}
+		for (int bufferSize : new int[] {4, 16, 1024}) {
+			try (LineReader reader = new LineReader(Channels.newChannel(new ByteArrayInputStream(
+					("first\n" + longLine + "\r\nshort\n" + longLine).getBytes(StandardCharsets.UTF_8))), bufferSize, 12)) {
+				assertThat(reader.nextLine().toString()).isEqualTo("first");
+				assertThat(reader.nextLine().toString()).as("buffer of " + bufferSize).isEqualTo("word word wo");
+				assertThat(reader.nextLine().toString()).isEqualTo("short");
+				assertThat(reader.nextLine().toString()).isEqualTo("word word wo");
+				assertThat(reader.nextLine()).isNull();
+				assertThat(reader.charCapacity()).as("chars held").isLessThanOrEqualTo(2 * (12 + bufferSize));
+			}
+		}
+	}
+
+	@Test
+	public void malformedInputIsReplaced() throws IOException {
+		byte[] bytes = {'o', 'k', (byte) 0xC3, '\n', 'n', 'e', 'x', 't'};
+		LineReader reader = new LineReader(Channels.newChannel(new ByteArrayInputStream(bytes)), 4);
+		assertThat(reader.nextLine().toString()).isEqualTo("ok\ufffd");
+		assertThat(reader.nextLine().toString()).isEqualTo("next");
+	}
+
+	@Test
+	public void lineIsAViewOverTheBuffer() throws IOException {
+		LineReader reader = new LineReader(Channels.newChannel(new ByteArrayInputStream("send 20\nshow CD".getBytes(StandardCharsets.UTF_8))), 64);
+		CharSequence first = reader.nextLine();
+		CharSequence kept = first.subSequence(5, 7);
+		CharSequence second = reader.nextLine();
+		assertThat(second).isSameAs(first);
+		assertThat(second.toString()).isEqualTo("show CD");
+		assertThat(kept.toString()).isEqualTo("20");
+		assertThat(reader.nextLine()).isNull();
+	}
+
+	private static List<String> lines(String text, int bufferSize) throws IOException {
+		return lines(text, bufferSize, LineReader.DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	private static List<String> lines(String text, int bufferSize, int maxLineLength) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (LineReader reader = new LineReader(Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))), bufferSize, maxLineLength)) {
+			for (CharSequence line = reader.nextLine(); line != null; line = reader.nextLine()) {
+				lines.add(line.toString());
+			}
+		}
+		return lines;
+	}
+}
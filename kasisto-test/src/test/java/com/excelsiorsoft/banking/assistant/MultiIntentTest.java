@@ -0,0 +1,88 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController.Clause;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.CompositeResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.DisplayContext;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.DisplayResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ProcessingBudget;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Result;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.TransferContext;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.TransferResult;
+
+public class MultiIntentTest {
+
+	private final ActionController controller = new ActionController();
+
+	@Test
+	public void transferAndInquiryAreBothAnswered() {
+		Result result = controller.produceAction("Move $50 from savings to checking and tell me my CD balance");
+		
+		assertThat(result).isInstanceOf(CompositeResult.class);
+		List<Result> results = ((CompositeResult) result).getResults();
+		assertThat(results).hasSize(2);
+		assertThat(results.get(0)).isInstanceOf(TransferResult.class);
+		assertThat(results.get(1)).isInstanceOf(DisplayResult.class);
+	}
+
+	@Test
+	public void fragmentsWithoutIntentStayWithTheirClause() {
+		List<Clause> clauses = segment("Transfer $20 from checking to savings, please.");
+		
+		assertThat(clauses).hasSize(1);
+		assertThat(clauses.get(0).context()).isInstanceOf(TransferContext.class);
+		assertThat(clauses.get(0).context().toString()).contains("please");
+	}
+
+	@Test
+	public void transferWrittenWithCommasIsOneClause() {
+		List<Clause> clauses = segment("transfer, $20 from checking, to savings");
+		
+		assertThat(clauses).hasSize(1);
+		assertThat(clauses.get(0).context().toString()).contains("source=checking, destination=savings, amount=20");
+		Result result = controller.produceAction("transfer, $20 from checking, to savings");
+		assertThat(result).isInstanceOf(TransferResult.class);
+		assertThat(((TransferResult) result).isSuccess()).isTrue();
+		assertThat(segment("my money, from checking, into savings")).hasSize(1);
+	}
+
+	@Test
+	public void requestWithoutCompleteClauseKeepsItsIntent() {
+		List<Clause> clauses = segment("transfer, to savings");
+		
+		assertThat(clauses).hasSize(1);
+		assertThat(clauses.get(0).context()).isInstanceOf(TransferContext.class);
+	}
+
+	@Test
+	public void independentClausesFormSeparateGroups() {
+		List<Clause> clauses = segment("Move $50 from savings to checking and show my CD balance");
+		
+		assertThat(clauses.get(1).context()).isInstanceOf(DisplayContext.class);
+		assertThat(ActionController.groupDependent(clauses)).containsExactly(0, 1);
+	}
+
+	@Test
+	public void clausesSharingAnAccountRunInOrder() {
+		List<Clause> clauses = segment("Move $50 from savings to checking and show my checking balance");
+		
+		assertThat(ActionController.groupDependent(clauses)).containsExactly(0, 0);
+	}
+
+	@Test
+	public void thenChainsClauses() {
+		List<Clause> clauses = segment("Show my CD balance then move $50 from savings to checking");
+		
+		assertThat(ActionController.groupDependent(clauses)).containsExactly(0, 0);
+	}
+
+	private List<Clause> segment(String line) {
+		return controller.segment(ActionController.DEFAULT_USER_ID, TransferDedupeIndex.NO_KEY, ProcessingBudget.defaultBudget().admit(line));
+	}
+}
@@ -0,0 +1,55 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.NotUnderstoodResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ProcessingBudget;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Result;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.TransferResult;
+
+public class ProcessingBudgetTest {
+
+	@Test
+	public void withinBudgetIsUnderstood() {
+		Result result = new ActionController().produceAction("Transfer $20 from checking to savings please.");
+		assertThat(result).isInstanceOf(TransferResult.class);
+	}
+
+	@Test
+	public void overlongInputIsRejectedUpFront() {
+		ActionController controller = new ActionController(ProcessingBudget.builder().withMaxInputLength(64).build());
+		Result result = controller.produceAction("Transfer $20 from checking to savings please." + pad(' ', 100));
+		assertThat(result).isInstanceOf(NotUnderstoodResult.class);
+		assertThat(((NotUnderstoodResult) result).getReason()).contains("exceeds limit of 64");
+	}
+
+	@Test
+	public void tooManyTokensIsRejectedUpFront() {
+		ActionController controller = new ActionController(ProcessingBudget.builder().withMaxTokens(5).build());
+		Result result = controller.produceAction("Transfer $20 from checking to savings please.");
+		assertThat(result).isInstanceOf(NotUnderstoodResult.class);
+		assertThat(((NotUnderstoodResult) result).getReason()).contains("5 tokens");
+	}
+
+	@Test
+	public void extractionIsCutShortAtTheDeadline() {
+		ActionController controller = new ActionController(ProcessingBudget.builder()
+				.withMaxInputLength(Integer.MAX_VALUE)
+				.withDeadlineNanos(1)
+				.build());
+		Result result = controller.produceAction(pad('x', 100_000) + " transfer");
+		assertThat(result).isInstanceOf(NotUnderstoodResult.class);
+		assertThat(((NotUnderstoodResult) result).getReason()).isEqualTo("extraction deadline exceeded");
+	}
+
+	private static String pad(char c, int count) {
+		StringBuilder sb = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
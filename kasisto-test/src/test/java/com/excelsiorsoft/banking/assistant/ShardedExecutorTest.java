@@ -0,0 +1,123 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.AccountType;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Result;
+
+public class ShardedExecutorTest {
+
+	@Test
+	public void tasksOfAUserRunInSubmissionOrderAndNeverConcurrently() throws Exception {
+		int users = 8;
+		int tasks = 10_000;
+		List<List<Integer>> seen = new ArrayList<>();
+		AtomicInteger[] running = new AtomicInteger[users];
+		AtomicInteger overlaps = new AtomicInteger();
+		for (int u = 0; u < users; u++) {
+			seen.add(new ArrayList<>());
+			running[u] = new AtomicInteger();
+		}
+
+		try (ShardedExecutor executor = new ShardedExecutor(4, users * tasks)) {
+			List<Thread> producers = new ArrayList<>();
+			for (int u = 0; u < users; u++) {
+				int user = u;
+				Thread producer = new Thread(() -> {
+					for (int i = 0; i < tasks; i++) {
+						int value = i;
+						executor.execute(user, () -> {
+							if (running[user].incrementAndGet() > 1) overlaps.incrementAndGet();
+							seen.get(user).add(value);
+							running[user].decrementAndGet();
+						});
+					}
+				});
+				producers.add(producer);
+				producer.start();
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			assertThat(executor.close(10, TimeUnit.SECONDS)).isTrue();
+			for (int shard = 0; shard < executor.shardCount(); shard++) {
+				assertThat(executor.rejected(shard)).isZero();
+			}
+		}
+
+		assertThat(overlaps.get()).isZero();
+		for (List<Integer> values : seen) {
+			assertThat(values).hasSize(tasks);
+			for (int i = 0; i < tasks; i++) {
+				assertThat(values.get(i)).isEqualTo(i);
+			}
+		}
+	}
+
+	@Test
+	public void fullShardRejects() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		try (ShardedExecutor executor = new ShardedExecutor(1, 2)) {
+			executor.execute(7, () -> {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			started.await();
+			executor.execute(7, () -> {});
+			executor.execute(7, () -> {});
+			assertThat(executor.queueDepth(0)).isEqualTo(2);
+			try {
+				executor.execute(7, () -> {});
+				fail("queue should be full");
+			} catch (RejectedExecutionException expected) {
+				assertThat(executor.rejected(0)).isEqualTo(1);
+			}
+			assertThat(executor.submit(7, () -> 1)).isCompletedExceptionally();
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void imbalanceReflectsSkew() throws Exception {
+		ShardedExecutor executor = new ShardedExecutor(4, 1024);
+		for (int i = 0; i < 100; i++) {
+			executor.submit(42, () -> null).get();
+		}
+		// the count is bumped once a task returns, after its future completed
+		assertThat(executor.close(10, TimeUnit.SECONDS)).isTrue();
+		assertThat(executor.executed(executor.shardOf(42))).isEqualTo(100);
+		assertThat(executor.imbalance()).isEqualTo(4.0);
+	}
+
+	@Test
+	public void concurrentTransfersOfAUserAreSerialized() throws Exception {
+		BalanceStore balances = ActionController.demoBalances();
+		try (ShardedExecutor shards = new ShardedExecutor(2, 1024)) {
+			ActionController controller = ActionController.builder().withVerbose(false).withBalances(balances).withShards(shards).build();
+			List<CompletableFuture<Result>> results = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				results.add(controller.submit(ActionController.DEFAULT_USER_ID, TransferDedupeIndex.NO_KEY, "transfer $1 from checking to savings"));
+			}
+			CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+		}
+		assertThat(balances.balance(AccountType.CHECKING.accountIdOf(ActionController.DEFAULT_USER_ID))).isEqualTo(950_00);
+		assertThat(balances.balance(AccountType.SAVINGS.accountIdOf(ActionController.DEFAULT_USER_ID))).isEqualTo(550_00);
+	}
+}
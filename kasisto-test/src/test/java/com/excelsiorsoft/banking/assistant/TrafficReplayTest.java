@@ -0,0 +1,161 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ProcessingBudget;
+import com.excelsiorsoft.banking.assistant.TrafficReplayer.ReplayDiff;
+import com.excelsiorsoft.banking.assistant.TrafficReplayer.ReplayRun;
+import com.excelsiorsoft.banking.assistant.TrafficReplayer.Traffic;
+import com.excelsiorsoft.banking.assistant.TrafficReplayer.Utterance;
+
+public class TrafficReplayTest {
+
+	private static final String[] TRAFFIC = {
+			"What is the balance of my checking account?",
+			"Transfer $20 from checking to savings please.",
+			"Move 50 dollars from savings to checking and show my CD balance",
+			"Savings account balance, merci \u00e0 vous \ud83d\ude00"
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recordedTrafficReadsBack() throws IOException {
+		List<Utterance> traffic = TrafficReplayer.read(record()).getUtterances();
+		
+		assertThat(traffic).hasSize(TRAFFIC.length);
+		for (int i = 0; i < TRAFFIC.length; i++) {
+			assertThat(traffic.get(i).line).isEqualTo(TRAFFIC[i]);
+			assertThat(traffic.get(i).userId).isEqualTo(ActionController.DEFAULT_USER_ID);
+		}
+		assertThat(traffic.get(3).offsetMicros).isGreaterThanOrEqualTo(traffic.get(0).offsetMicros);
+	}
+
+	@Test
+	public void identicalBuildsShowNoChanges() throws IOException {
+		List<Utterance> traffic = TrafficReplayer.read(record()).getUtterances();
+		ReplayRun baseline = TrafficReplayer.replay(traffic, ActionController.builder().withVerbose(false), 0);
+		Path report = folder.newFile("baseline.tsv").toPath();
+		baseline.write(report);
+		
+		ReplayRun candidate = TrafficReplayer.replay(traffic, ActionController.builder().withVerbose(false), 0);
+		ReplayDiff diff = TrafficReplayer.compare(ReplayRun.read(report), candidate);
+		
+		assertThat(diff.getChanged()).isEmpty();
+		assertThat(candidate.getEntries()).hasSize(TRAFFIC.length);
+	}
+
+	@Test
+	public void changedUnderstandingIsReported() throws IOException {
+		List<Utterance> traffic = TrafficReplayer.read(record()).getUtterances();
+		Properties strict = new Properties();
+		strict.setProperty("transfer.rules.fraudThreshold", "10");
+		ReplayRun baseline = TrafficReplayer.replay(traffic, ActionController.builder().withVerbose(false), 0);
+		ReplayRun candidate = TrafficReplayer.replay(traffic, 
+				ActionController.builder().withVerbose(false).withRules(TransferRuleEngine.fromProperties(strict)), 0);
+		ReplayDiff diff = TrafficReplayer.compare(baseline, candidate);
+		
+		assertThat(diff.getChanged()).contains(1, 2).doesNotContain(0);
+		assertThat(diff.toString()).contains("FRAUD_THRESHOLD").contains("p99");
+	}
+
+	@Test
+	public void historyWithTimesReplaysWithoutChanges() throws IOException {
+		List<Utterance> traffic = Arrays.asList(
+				new Utterance(0, ActionController.DEFAULT_USER_ID, "Transfer $20 from checking to savings"),
+				new Utterance(0, ActionController.DEFAULT_USER_ID, "show my transfer history"),
+				new Utterance(0, ActionController.DEFAULT_USER_ID, "what did I transfer today"),
+				new Utterance(0, ActionController.DEFAULT_USER_ID, "savings"));
+		ReplayRun baseline = TrafficReplayer.replay(traffic, ActionController.builder().withVerbose(false), 0);
+		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+		ReplayRun candidate = TrafficReplayer.replay(traffic, ActionController.builder().withVerbose(false), 0);
+		
+		assertThat(TrafficReplayer.compare(baseline, candidate).getChanged()).isEmpty();
+	}
+
+	@Test
+	public void truncatedLogKeepsItsCompleteRecords() throws IOException {
+		Path log = record();
+		byte[] bytes = Files.readAllBytes(log);
+		Files.write(log, Arrays.copyOf(bytes, bytes.length - 3));
+		
+		Traffic traffic = TrafficReplayer.read(log);
+		assertThat(traffic.isTruncated()).isTrue();
+		assertThat(traffic.getUtterances()).extracting("line").containsExactly(TRAFFIC[0], TRAFFIC[1], TRAFFIC[2]);
+		Files.write(log, bytes);
+		assertThat(TrafficReplayer.read(log).isTruncated()).isFalse();
+	}
+
+	@Test
+	public void oversizeAndMalformedUtterancesAreRecorded() throws IOException {
+		Path log = folder.newFile("odd.krec").toPath();
+		char[] huge = new char[TrafficRecorder.MAX_UTTERANCE + 100];
+		Arrays.fill(huge, 'x');
+		try (TrafficRecorder recorder = TrafficRecorder.open(log)) {
+			recorder.record(ActionController.DEFAULT_USER_ID, new String(huge));
+			recorder.record(ActionController.DEFAULT_USER_ID, "lone \ud83d surrogate");
+			recorder.record(ActionController.DEFAULT_USER_ID, "after");
+		}
+		
+		List<Utterance> traffic = TrafficReplayer.read(log).getUtterances();
+		assertThat(traffic).hasSize(3);
+		assertThat(traffic.get(0).line).hasSize(TrafficRecorder.MAX_UTTERANCE);
+		assertThat(traffic.get(1).line).isEqualTo("lone \ufffd surrogate");
+		assertThat(traffic.get(2).line).isEqualTo("after");
+	}
+
+	@Test
+	public void requestsAreRecordedAsTheyArrive() throws IOException {
+		Path log = folder.newFile("arrived.krec").toPath();
+		try (TrafficRecorder recorder = TrafficRecorder.open(log)) {
+			ActionController controller = ActionController.builder().withVerbose(false)
+					.withBudget(ProcessingBudget.builder().withMaxInputLength(20).build())
+					.withAdmission(AdmissionControl.builder().withUserRate(1, 2).build(() -> 0))
+					.withRecorder(recorder)
+					.build();
+			controller.produceAction("savings balance");
+			controller.produceAction("Transfer $20 from checking to savings please.");
+			controller.produceAction("checking balance");
+		}
+		
+		assertThat(TrafficReplayer.read(log).getUtterances()).extracting("line")
+				.as("over budget and rate limited requests too").containsExactly("savings balance", "Transfer $20 from checking to savings please.", "checking balance");
+	}
+
+	@Test
+	public void rateLimitedRequestsReplayAsSuch() throws IOException {
+		List<Utterance> traffic = TrafficReplayer.read(record()).getUtterances();
+		ReplayRun run = TrafficReplayer.replay(traffic, 
+				ActionController.builder().withVerbose(false).withAdmission(AdmissionControl.builder().withUserRate(1, 2).build(() -> 0)), 0);
+		
+		assertThat(run.getEntries().get(1).result).startsWith("TransferResult [isSuccess=true");
+		assertThat(run.getEntries()).extracting("result").endsWith("RateLimitedResult", "RateLimitedResult");
+		assertThat(run.getEntries().get(2).parsed).isEqualTo("[]");
+		run.write(folder.newFile("limited.tsv").toPath());
+	}
+
+	private Path record() throws IOException {
+		Path log = folder.newFile("traffic.krec").toPath();
+		try (TrafficRecorder recorder = TrafficRecorder.open(log)) {
+			for (String line : TRAFFIC) {
+				recorder.record(ActionController.DEFAULT_USER_ID, line);
+			}
+		}
+		return log;
+	}
+}
@@ -0,0 +1,174 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.AccountType;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.TransferDedupeIndex.Recorded;
+
+public class TransferDedupeIndexTest {
+
+	private final AtomicLong now = new AtomicLong(1_000);
+
+	@Test
+	public void retriedTransferMovesMoneyOnce() {
+		BalanceStore balances = ActionController.demoBalances();
+		ActionController controller = ActionController.builder().withBalances(balances).build();
+		long savings = AccountType.SAVINGS.accountIdOf(ActionController.DEFAULT_USER_ID);
+		
+		String first = controller.produceAction(ActionController.DEFAULT_USER_ID, 77, "Transfer $20 from checking to savings").toString();
+		String retry = controller.produceAction(ActionController.DEFAULT_USER_ID, 77, "Transfer $20 from checking to savings").toString();
+		
+		assertThat(retry).isEqualTo(first);
+		assertThat(balances.balance(savings)).isEqualTo(520_00);
+		
+		controller.produceAction(ActionController.DEFAULT_USER_ID, 78, "Transfer $20 from checking to savings");
+		assertThat(balances.balance(savings)).isEqualTo(540_00);
+	}
+
+	@Test
+	public void duplicateSeesTheOriginalOutcome() {
+		TransferDedupeIndex index = new TransferDedupeIndex(16, 1_000, now::get);
+		Recorded original = new Recorded();
+		
+		assertThat(index.claim(5, original)).isTrue();
+		index.complete(5, true, TransferRuleEngine.PASSED, 10, 20);
+		
+		assertThat(index.claim(5, original)).isFalse();
+		assertThat(original.isSuccess()).isTrue();
+		assertThat(original.getSourceBalance()).isEqualTo(10);
+		assertThat(original.getDestinationBalance()).isEqualTo(20);
+	}
+
+	@Test
+	public void abandonedKeyCanBeRetried() {
+		TransferDedupeIndex index = new TransferDedupeIndex(16, 1_000, now::get);
+		
+		assertThat(index.claim(5, new Recorded())).isTrue();
+		index.abandon(5);
+		assertThat(index.claim(5, new Recorded())).isTrue();
+	}
+
+	@Test
+	public void keysAreForgottenAfterTwoWindows() {
+		TransferDedupeIndex index = new TransferDedupeIndex(16, 1_000, now::get);
+		index.claim(5, new Recorded());
+		index.complete(5, true, TransferRuleEngine.PASSED, 0, 0);
+		
+		now.addAndGet(1_500);
+		assertThat(index.claim(5, new Recorded())).isFalse();
+		
+		now.addAndGet(1_000);
+		index.claim(6, new Recorded());
+		now.addAndGet(1_000);
+		assertThat(index.claim(5, new Recorded())).isTrue();
+	}
+
+	@Test
+	public void fullGenerationRefusesNewKeysUntilRotation() {
+		TransferDedupeIndex index = new TransferDedupeIndex(4, 1_000, now::get);
+		for (long key = 1; key <= 4; key++) {
+			assertThat(index.claim(key, new Recorded())).isTrue();
+			index.complete(key, true, TransferRuleEngine.PASSED, key, key);
+		}
+		Recorded refused = new Recorded();
+		assertThat(index.claim(5, refused)).isFalse();
+		assertThat(refused.isRetryLater()).isTrue();
+		
+		Recorded original = new Recorded();
+		assertThat(index.claim(1, original)).as("keys of the window are kept").isFalse();
+		assertThat(original.isRetryLater()).isFalse();
+		assertThat(original.getSourceBalance()).isEqualTo(1);
+		
+		now.addAndGet(1_000);
+		assertThat(index.claim(5, new Recorded())).isTrue();
+		assertThat(index.claim(1, new Recorded())).isFalse();
+	}
+
+	@Test
+	public void retryStopsWaitingForAStuckSubmission() {
+		TransferDedupeIndex index = new TransferDedupeIndex(16, 1_000, 50, now::get);
+		assertThat(index.claim(5, new Recorded())).isTrue();
+		
+		Recorded retry = new Recorded();
+		assertThat(index.claim(5, retry)).as("owner neither completed nor abandoned").isFalse();
+		assertThat(retry.isRetryLater()).isTrue();
+		
+		now.addAndGet(1_000);
+		index.claim(6, new Recorded());
+		now.addAndGet(1_000);
+		assertThat(index.claim(5, new Recorded())).as("a forgotten pending key is claimed anew").isTrue();
+	}
+
+	@Test
+	public void concurrentSubmissionsHaveOneOwner() throws InterruptedException {
+		TransferDedupeIndex index = new TransferDedupeIndex(1024, 60_000, now::get);
+		AtomicInteger owners = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (long key = 1; key <= 500; key++) {
+					if (index.claim(key, new Recorded())) {
+						owners.incrementAndGet();
+						index.complete(key, true, TransferRuleEngine.PASSED, 0, 0);
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertThat(owners.get()).isEqualTo(500);
+	}
+
+	@Test
+	public void concurrentSubmissionsAcrossARotationHaveOneOwner() throws InterruptedException {
+		TransferDedupeIndex index = new TransferDedupeIndex(1024, 1_000, now::get);
+		AtomicInteger owners = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			boolean rotating = t == 0;
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (long key = 1; key <= 500; key++) {
+					if (rotating && key == 250) {
+						now.addAndGet(1_000);
+					}
+					if (index.claim(key, new Recorded())) {
+						owners.incrementAndGet();
+						index.complete(key, true, TransferRuleEngine.PASSED, 0, 0);
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertThat(owners.get()).as("keys claimed before and after the rotation are still remembered").isEqualTo(500);
+	}
+}
@@ -0,0 +1,132 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.AccountType;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.HistoryResult;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Intent;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.Result;
+
+public class TransferHistoryTest {
+
+	private static final long CHECKING = AccountType.CHECKING.accountIdOf(ActionController.DEFAULT_USER_ID);
+	private static final long SAVINGS = AccountType.SAVINGS.accountIdOf(ActionController.DEFAULT_USER_ID);
+
+	private final AtomicLong clock = new AtomicLong(1_000);
+	private final TransferHistory history = new TransferHistory(16, 4, clock::get);
+
+	@Test
+	public void bothSidesAreRecorded() {
+		history.record(CHECKING, SAVINGS, 20_00);
+
+		assertThat(amounts(CHECKING, 10)).containsExactly(-20_00L);
+		assertThat(amounts(SAVINGS, 10)).containsExactly(20_00L);
+		List<Long> counterparties = new ArrayList<>();
+		history.last(SAVINGS, 1, (millis, counterpartyId, amount) -> counterparties.add(counterpartyId));
+		assertThat(counterparties).containsExactly(CHECKING);
+	}
+
+	@Test
+	public void ringKeepsTheLatestRecordsNewestFirst() {
+		for (int i = 1; i <= 10; i++) {
+			clock.addAndGet(1_000);
+			history.record(CHECKING, SAVINGS, i);
+		}
+		assertThat(history.size(CHECKING)).isEqualTo(4);
+		assertThat(amounts(CHECKING, 2)).containsExactly(-10L, -9L);
+		assertThat(amounts(CHECKING, 100)).containsExactly(-10L, -9L, -8L, -7L);
+		assertThat(history.size(AccountType.CD.accountIdOf(ActionController.DEFAULT_USER_ID))).isZero();
+	}
+
+	@Test
+	public void timeRangesAreFoundInTheRing() {
+		for (int i = 1; i <= 6; i++) {
+			clock.set(i * 1_000);
+			history.record(CHECKING, SAVINGS, i);
+		}
+		// records 3 to 6 are held, 1 and 2 were overwritten
+		assertThat(between(CHECKING, 4_000, 6_000)).containsExactly(-4L, -5L);
+		assertThat(between(CHECKING, 0, Long.MAX_VALUE)).containsExactly(-3L, -4L, -5L, -6L);
+		assertThat(between(CHECKING, 6_500, Long.MAX_VALUE)).isEmpty();
+
+		clock.set(0);
+		history.record(CHECKING, SAVINGS, 7);
+		assertThat(between(CHECKING, 6_000, Long.MAX_VALUE)).as("kept in time order when the clock goes back").containsExactly(-6L, -7L);
+	}
+
+	@Test
+	public void accountsBeyondCapacityAreDropped() {
+		TransferHistory small = new TransferHistory(4, 1, clock::get);
+		small.record(1, 2, 100);
+		small.record(3, 4, 100);
+		small.record(5, 6, 100);
+		assertThat(small.dropped()).isEqualTo(2);
+		assertThat(small.size(5)).isZero();
+		assertThat(small.size(4)).isEqualTo(1);
+	}
+
+	@Test
+	public void idleAccountsMakeRoomForNewOnes() {
+		TransferHistory small = new TransferHistory(4, 1, 1_000, clock::get);
+		small.record(1, 2, 100);
+		small.record(3, 4, 100);
+		clock.set(1_500);
+		small.record(1, 2, 100);
+		
+		clock.set(2_200);
+		small.record(5, 6, 100);
+		assertThat(small.evicted()).isEqualTo(2);
+		assertThat(small.size(5)).isEqualTo(1);
+		assertThat(small.size(6)).isEqualTo(1);
+		assertThat(small.size(3)).isZero();
+		assertThat(small.size(1)).as("active recently").isEqualTo(1);
+		
+		small.record(7, 8, 100);
+		assertThat(small.dropped()).as("no account idle long enough").isEqualTo(2);
+	}
+
+	@Test
+	public void historyIntentAnswersFromTheTransfersMade() {
+		assertThat(Grammar.defaults().classifier().classify("what were my last transfers from savings?", IntentClassifier.newProbabilities()))
+				.isEqualTo(Intent.HISTORY);
+
+		ActionController controller = ActionController.builder().withVerbose(false).withHistory(new TransferHistory()).build();
+		controller.produceAction("move $20 from savings to checking");
+		controller.produceAction("send 30 dollars from checking to my CD");
+		controller.produceAction("move $1,000,000 from savings to checking");
+
+		Result result = controller.produceAction("what were my last transfers from savings?");
+		assertThat(result).isInstanceOf(HistoryResult.class);
+		HistoryResult savings = (HistoryResult) result;
+		assertThat(savings.isSuccess()).isTrue();
+		assertThat(savings.getTransfers()).extracting("amount").containsExactly("-20.0");
+		assertThat(savings.getTransfers()).extracting("counterparty").containsExactly("checking");
+
+		HistoryResult all = (HistoryResult) controller.produceAction("show my transfer history");
+		assertThat(all.getTransfers()).extracting("account").containsExactly(AccountType.CHECKING, AccountType.SAVINGS);
+
+		HistoryResult today = (HistoryResult) controller.produceAction("which transfers did I make today");
+		assertThat(today.getTransfers()).hasSize(2);
+		HistoryResult last = (HistoryResult) controller.produceAction("show my last 1 transfers");
+		assertThat(last.getTransfers()).extracting("amount").containsExactly("-30.0");
+	}
+
+	private List<Long> amounts(long accountId, int count) {
+		List<Long> amounts = new ArrayList<>();
+		history.last(accountId, count, (millis, counterpartyId, amount) -> amounts.add(amount));
+		return amounts;
+	}
+
+	private List<Long> between(long accountId, long from, long to) {
+		List<Long> amounts = new ArrayList<>();
+		history.between(accountId, from, to, (millis, counterpartyId, amount) -> amounts.add(amount));
+		return amounts;
+	}
+}
@@ -0,0 +1,104 @@
+package com.excelsiorsoft.banking.assistant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.excelsiorsoft.banking.assistant.BankingAssistant.AccountType;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.ActionController;
+import com.excelsiorsoft.banking.assistant.BankingAssistant.TransferResult;
+import com.excelsiorsoft.banking.assistant.TransferRuleEngine.Rule;
+import com.excelsiorsoft.banking.assistant.TransferRuleEngine.TransferFacts;
+
+public class TransferRuleEngineTest {
+
+	private static final int TODAY = 17_500;
+
+	private final TransferRuleEngine engine = TransferRuleEngine.fromProperties(config("transfer.rules.dailyLimit", "100000"));
+
+	@Test
+	public void validTransferPasses() {
+		assertThat(engine.evaluate(facts(1, 2, AccountType.CHECKING, 100_00, 500_00))).isEqualTo(TransferRuleEngine.PASSED);
+	}
+
+	@Test
+	public void everyRuleRejects() {
+		assertThat(rejection(facts(1, 1, AccountType.CHECKING, 100_00, 500_00))).isEqualTo(Rule.SAME_ACCOUNT);
+		assertThat(rejection(facts(1, 2, AccountType.CHECKING, 600_00, 500_00))).isEqualTo(Rule.SUFFICIENT_FUNDS);
+		assertThat(rejection(facts(1, 2, AccountType.CHECKING, 100_00, 500_00).withSourceState(500_00, 99_950_00, TODAY, 0)))
+				.isEqualTo(Rule.DAILY_LIMIT);
+		assertThat(rejection(facts(1, 2, AccountType.CD, 100_00, 500_00).withSourceState(500_00, 0, TODAY, TODAY + 1)))
+				.isEqualTo(Rule.CD_MATURITY);
+		assertThat(rejection(facts(1, 2, AccountType.CHECKING, 20_000_00, 50_000_00))).isEqualTo(Rule.FRAUD_THRESHOLD);
+		assertThat(rejection(facts(1, 2, AccountType.CHECKING, 100_00, 500_00).withDestinationKnown(false))).isEqualTo(Rule.KNOWN_ACCOUNTS);
+		assertThat(rejection(facts(1, 2, AccountType.CHECKING, 0, 500_00))).isEqualTo(Rule.POSITIVE_AMOUNT);
+		assertThat(rejection(facts(1, 2, AccountType.CHECKING, -20_00, 500_00))).isEqualTo(Rule.POSITIVE_AMOUNT);
+	}
+
+	@Test
+	public void onlyConfiguredRulesAreApplied() {
+		Properties config = new Properties();
+		config.setProperty("transfer.rules", "sufficient_funds, fraud_threshold");
+		config.setProperty("transfer.rules.fraudThreshold", "50");
+		TransferRuleEngine configured = TransferRuleEngine.fromProperties(config);
+		
+		assertThat(configured.order()).containsExactly(Rule.SUFFICIENT_FUNDS, Rule.FRAUD_THRESHOLD);
+		assertThat(configured.evaluate(facts(1, 1, AccountType.CHECKING, 40_00, 500_00))).isEqualTo(TransferRuleEngine.PASSED);
+		assertThat(configured.evaluate(facts(1, 2, AccountType.CHECKING, 60_00, 500_00))).isEqualTo(Rule.FRAUD_THRESHOLD.code());
+	}
+
+	@Test
+	public void mostSelectiveRulesMoveToTheFront() {
+		Properties config = config("transfer.rules.dailyLimit", "100000");
+		config.setProperty("transfer.rules.reorderInterval", "1000");
+		TransferRuleEngine adaptive = TransferRuleEngine.fromProperties(config);
+		assertThat(adaptive.order()).startsWith(Rule.KNOWN_ACCOUNTS, Rule.SAME_ACCOUNT, Rule.POSITIVE_AMOUNT);
+		
+		for (int i = 0; i < 10_000; i++) {
+			adaptive.evaluate(facts(1, 2, AccountType.CHECKING, 20_000_00, 50_000_00));
+		}
+		
+		assertThat(adaptive.order()).as("preconditions stay in front")
+				.startsWith(Rule.KNOWN_ACCOUNTS, Rule.SAME_ACCOUNT, Rule.POSITIVE_AMOUNT, Rule.FRAUD_THRESHOLD);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void reorderIntervalMustBePositive() {
+		TransferRuleEngine.fromProperties(config("transfer.rules.reorderInterval", "0"));
+	}
+
+	@Test
+	public void zeroAmountIsRejected() {
+		TransferResult result = (TransferResult) new ActionController().produceAction("transfer $0 from checking to savings");
+		
+		assertThat(result.isSuccess()).isFalse();
+		assertThat(result.getRejectedBy()).isEqualTo(Rule.POSITIVE_AMOUNT.name());
+	}
+
+	@Test
+	public void rejectionIsReportedInTheResult() {
+		TransferResult result = (TransferResult) new ActionController().produceAction("Transfer $900 from savings to checking");
+		
+		assertThat(result.isSuccess()).isFalse();
+		assertThat(result.getRejectedBy()).isEqualTo(Rule.SUFFICIENT_FUNDS.name());
+	}
+
+	private static Properties config(String key, String value) {
+		Properties config = new Properties();
+		config.setProperty(key, value);
+		return config;
+	}
+
+	private Rule rejection(TransferFacts facts) {
+		return Rule.ofCode(engine.evaluate(facts));
+	}
+
+	private static TransferFacts facts(long source, long destination, AccountType sourceType, long amount, long sourceBalance) {
+		return new TransferFacts()
+				.set(source, destination, sourceType.ordinal(), amount)
+				.withSourceState(sourceBalance, 0, TODAY, 0)
+				.withDestinationKnown(true);
+	}
+}